@@ -0,0 +1,321 @@
+import java.util.Vector;
+import java.io.*;
+
+/**
+ * Bisecting k-means: starting from a single cluster of all the points, the worst leaf
+ * cluster is split in two by k-means with k=2, until there are k leaves.
+ * The worst leaf is either the one of largest sum of squared errors (SSE) or the one
+ * whose split lowers most the MDL of the model with one diagonal Gaussian per leaf (MDL),
+ * in which case each leaf is split as soon as it is made to find how much the MDL drops,
+ * and the splits stop once none lowers the MDL (so that k is only an upper bound).
+ * Each split only looks at the points of its cluster, so building k clusters costs
+ * about n log k distances instead of n k per iteration of flat k-means.
+ * The tree of the splits classifies a new point by going down to the child of closest mean,
+ * in as many comparisons as the depth of the tree (about log k when the splits are balanced).
+ * The means of the leaves can also start a flat run (kMeans.run from given means).
+**/
+public class BisectingKMeans
+{
+
+  final static int SSE=0;                 // split the leaf of largest sum of squared errors
+  final static int MDL=1;                 // split the leaf whose split lowers the MDL most
+  final static int TRIALS=3;              // number of runs of 2-means per split, the best one kept
+
+  private int criterion;                  // which leaf to split (SSE or MDL)
+  private int method;                     // method of the runs of 2-means (see kMeans)
+  private PointND[] x;                    // the points clustered
+  private Node root;                      // the tree of the splits
+  private Vector<Node> leaves;            // the leaf clusters, numbered in the order of the vector
+  private double[] floor;                 // smallest variance of a leaf on each coordinate
+
+  /**
+   * Set the criterion of the leaf to split and the method of the runs of 2-means
+  **/
+  public BisectingKMeans(int criterion,int method)
+  {
+    this.criterion=criterion;
+    this.method=method;
+  }
+
+  /**
+   * Split the points x into k clusters (fewer if the points cannot be split further,
+   * or with MDL if no split lowers the MDL)
+  **/
+  public void run(PointND[] x,int k,double epsilon)
+  {
+    this.x=x;
+    int[] all=new int[x.length];
+    for (int i=0;i<all.length;i++)
+      all[i]=i;
+    root=new Node(all);
+    // the variance floor of kMeans, relative to the variance of all the points
+    floor=new double[root.mean.getDimension()];
+    for (int c=0;c<floor.length;c++)
+    {
+      floor[c]=kMeans.VARIANCEFLOOR*root.variance[c];
+      if (!(floor[c]>0))
+        floor[c]=Double.MIN_NORMAL;
+    }
+    leaves=new Vector<Node>();
+    leaves.add(root);
+
+    Node worst, leaf;
+    double score, largest;
+    while (leaves.size()<k)
+    {
+      // the worst leaf that can still be split
+      worst=null;
+      largest=Double.NEGATIVE_INFINITY;
+      for (int j=0;j<leaves.size();j++)
+      {
+        leaf=leaves.get(j);
+        if (criterion==MDL && !leaf.tried)
+          split(leaf,epsilon);
+        if (leaf.unsplittable)
+          continue;
+        if (criterion==MDL)
+          score=leaf.mdl() - leaf.splitLeft.mdl() - leaf.splitRight.mdl();
+        else
+          score=leaf.sse;
+        if (score>largest)
+        {
+          largest=score;
+          worst=leaf;
+        }
+      }
+      // with MDL, no split makes the model shorter
+      if (worst==null || (criterion==MDL && largest<=0))
+        break;
+      if (!worst.tried)
+        split(worst,epsilon);
+      if (worst.unsplittable)
+        continue;
+      // the left child takes the place of its parent, the right one goes last
+      worst.left=worst.splitLeft;
+      worst.right=worst.splitRight;
+      worst.splitLeft=null;
+      worst.splitRight=null;
+      worst.members=null;
+      leaves.set(leaves.indexOf(worst),worst.left);
+      leaves.add(worst.right);
+    }
+    for (int j=0;j<leaves.size();j++)
+    {
+      leaf=leaves.get(j);
+      leaf.label=j;
+      leaf.members=null;
+      leaf.splitLeft=null;
+      leaf.splitRight=null;
+    }
+  }
+
+  /**
+   * Find the split of a leaf in two by the best of TRIALS runs of 2-means on its points
+   * The leaf is marked unsplittable if its points cannot be split
+  **/
+  private void split(Node leaf,double epsilon)
+  {
+    leaf.tried=true;
+    int m=leaf.members.length;
+    if (m<2 || leaf.sse==0)
+    {
+      leaf.unsplittable=true;
+      return;
+    }
+    PointND[] points=new PointND[m];
+    for (int i=0;i<m;i++)
+      points[i]=x[leaf.members[i]];
+    Node bestLeft=null, bestRight=null;
+    kMeans model;
+    int[] assignment, left, right;
+    int numLeft;
+    for (int t=0;t<TRIALS;t++)
+    {
+      model=new kMeans();
+      model.run(points,2,epsilon,method);
+      assignment=model.getAssignment();
+      numLeft=0;
+      for (int i=0;i<m;i++)
+        if (assignment[i]==0)
+          numLeft++;
+      if (numLeft==0 || numLeft==m)
+        continue;
+      left=new int[numLeft];
+      right=new int[m-numLeft];
+      numLeft=0;
+      for (int i=0;i<m;i++)
+      {
+        if (assignment[i]==0)
+          left[numLeft++]=leaf.members[i];
+        else
+          right[i-numLeft]=leaf.members[i];
+      }
+      Node l=new Node(left);
+      Node r=new Node(right);
+      if (bestLeft==null || l.sse+r.sse < bestLeft.sse+bestRight.sse)
+      {
+        bestLeft=l;
+        bestRight=r;
+      }
+    }
+    if (bestLeft==null)
+    {
+      leaf.unsplittable=true;
+      return;
+    }
+    leaf.splitLeft=bestLeft;
+    leaf.splitRight=bestRight;
+  }
+
+  /**
+   * Return the cluster of a point by going down the tree to the child of closest mean
+  **/
+  public int classify(PointND p)
+  {
+    Node node=root;
+    while (node.left!=null)
+    {
+      if (p.dist(node.left.mean) <= p.dist(node.right.mean))
+        node=node.left;
+      else
+        node=node.right;
+    }
+    return node.label;
+  }
+
+  /**
+   * Return the number of clusters
+  **/
+  public int getK()
+  {
+    return leaves.size();
+  }
+
+  /**
+   * Return a copy of the mean of each cluster
+  **/
+  public PointND[] getMeans()
+  {
+    PointND[] means=new PointND[leaves.size()];
+    for (int j=0;j<means.length;j++)
+      means[j]=new PointND(leaves.get(j).mean);
+    return means;
+  }
+
+  /**
+   * Return the sum of squared errors of the clusters
+  **/
+  public double getSSE()
+  {
+    double sse=0;
+    for (int j=0;j<leaves.size();j++)
+      sse=sse + leaves.get(j).sse;
+    return sse;
+  }
+
+  /**
+   * Return the depth of the tree
+  **/
+  public int getDepth()
+  {
+    return root.depth();
+  }
+
+  /**
+   * A cluster of the tree with the mean, sum of squared errors and variance of its points
+  **/
+  private class Node
+  {
+    PointND mean;
+    double sse;
+    double[] variance;                    // variance of each coordinate
+    int[] members;                        // the points of a leaf (null once split or done)
+    int size;
+    Node left;
+    Node right;
+    int label;                            // number of a leaf
+    boolean tried;                        // the split of the leaf was looked for
+    boolean unsplittable;                 // 2-means could not split the points of the leaf
+    Node splitLeft;                       // the split found for a leaf, not yet made
+    Node splitRight;
+
+    Node(int[] members)
+    {
+      this.members=members;
+      this.size=members.length;
+      int d=x[0].getDimension();
+      mean=new PointND(d);
+      variance=new double[d];
+      for (int i=0;i<size;i++)
+        mean.add(x[members[i]]);
+      mean.multiply(1.0/size);
+      double diff;
+      for (int i=0;i<size;i++)
+      {
+        for (int c=0;c<d;c++)
+        {
+          diff=x[members[i]].getCoordinate(c)-mean.getCoordinate(c);
+          variance[c]=variance[c] + diff*diff;
+        }
+      }
+      for (int c=0;c<d;c++)
+      {
+        sse=sse + variance[c];
+        variance[c]=variance[c]/size;
+      }
+    }
+
+    /**
+     * Return the bits of the MDL of a model with one diagonal Gaussian per leaf spent on
+     * this leaf: its deviations as in kMeans, and its points given the leaf
+     * (their prior, and their Gaussian density at its maximum likelihood)
+    **/
+    double mdl()
+    {
+      double ln2=Math.log(2);
+      double bits=-size*Math.log(size*1.0/x.length)/ln2;
+      double logDeviation;
+      for (int c=0;c<variance.length;c++)
+      {
+        logDeviation=Math.log(Math.max(variance[c],floor[c]))/2;
+        bits=bits - (logDeviation - Math.log(size)/2)/ln2;
+        bits=bits + size*(logDeviation + (Math.log(2*Math.PI)+1)/2)/ln2;
+      }
+      return bits;
+    }
+
+    int depth()
+    {
+      if (left==null)
+        return 0;
+      return 1 + Math.max(left.depth(),right.depth());
+    }
+  }
+
+  /**
+   * Takes a data file and a number of clusters k and splits the points into k clusters
+  **/
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length!=2 && args.length!=3)
+    {
+      System.out.println("Wrong usage. Type java BisectingKMeans [data file] [number of clusters] [mdl]");
+      System.out.println("The cluster of largest SSE is split, or with mdl the one whose split lowers the MDL most");
+    }
+    else
+    {
+      PointND[] x=kMeans.readPoints(args[0]);
+      int k=Integer.parseInt(args[1]);
+      int criterion=SSE;
+      if (args.length==3 && args[2].equals("mdl"))
+        criterion=MDL;
+      BisectingKMeans algorithm=new BisectingKMeans(criterion,kMeans.HAMERLY);
+      algorithm.run(x,k,0.01);
+      System.out.println("Split into " + algorithm.getK() + " clusters, tree of depth " + algorithm.getDepth());
+      System.out.println("SSE " + algorithm.getSSE());
+      PointND[] means=algorithm.getMeans();
+      for (int j=0;j<means.length;j++)
+        System.out.println("mean " + (j+1) + " " + means[j]);
+    }
+  }
+}
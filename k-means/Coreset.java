@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+ * Coreset of a set of points for k-means: a small set of weighted points whose weighted cost
+ * for any k means is close to the cost of all the points (sensitivity sampling, as in
+ * Bachem, Lucic and Krause, Practical Coreset Constructions for Machine Learning).
+ * A k-means++ pass gives a rough clustering B of the points. Each point is then drawn with
+ * a probability q(x) proportional to a bound on how much it can weigh in any clustering
+ *   s(x) = a d(x,B)^2 / c + 2 a cost(C) / (|C| c) + 4 n / |C|
+ * where C is the cluster of x in B, c the average squared distance of a point to B
+ * and a = 16 (log k + 2). A point drawn m times out of size draws weighs m / (size q(x)).
+ * With about d k log k / eps^2 draws the cost of any k means is within a factor 1 +- eps
+ * with high probability, whatever the number of points.
+**/
+public class Coreset
+{
+
+  private PointND[] points;               // the distinct points drawn
+  private double[] weights;               // the weight of each point drawn
+
+  /**
+   * Draw a coreset of size points (with replacement) from x for k clusters
+  **/
+  public Coreset(PointND[] x,int k,int size)
+  {
+    int n=x.length;
+    double[] ones=new double[n];
+    Arrays.fill(ones,1);
+    int[] seeds=kMeans.plusPlus(x,ones,Math.min(k,n));
+
+    // rough clustering: closest seed of each point and cost of each cluster
+    int[] closest=new int[n];
+    double[] dist2=new double[n];
+    double[] clusterCost=new double[seeds.length];
+    int[] clusterSize=new int[seeds.length];
+    double dist, total=0;
+    for (int i=0;i<n;i++)
+    {
+      dist2[i]=Double.POSITIVE_INFINITY;
+      for (int b=0;b<seeds.length;b++)
+      {
+        dist=kMeans.squaredDist(x[i],x[seeds[b]]);
+        if (dist<dist2[i])
+        {
+          dist2[i]=dist;
+          closest[i]=b;
+        }
+      }
+      clusterCost[closest[i]]=clusterCost[closest[i]] + dist2[i];
+      clusterSize[closest[i]]++;
+      total=total + dist2[i];
+    }
+
+    // sensitivity bounds, summed up to draw from them
+    double alpha=16*(Math.log(seeds.length)+2);
+    double average=total/n;
+    double[] cumulative=new double[n];
+    double sensitivity;
+    int b;
+    for (int i=0;i<n;i++)
+    {
+      b=closest[i];
+      sensitivity=4.0*n/clusterSize[b];
+      // all the points on the seeds: every point as likely as in its cluster
+      if (average>0)
+        sensitivity=sensitivity + alpha*dist2[i]/average + 2*alpha*clusterCost[b]/(clusterSize[b]*average);
+      cumulative[i]=(i>0 ? cumulative[i-1] : 0) + sensitivity;
+    }
+
+    // draw with replacement, a point drawn many times is kept once with the weight of its draws
+    int[] draws=new int[n];
+    int i, distinct=0;
+    for (int s=0;s<size;s++)
+    {
+      i=Arrays.binarySearch(cumulative,Math.random()*cumulative[n-1]);
+      if (i<0)
+        i=-i-1;
+      if (i>=n)
+        i=n-1;
+      if (draws[i]==0)
+        distinct++;
+      draws[i]++;
+    }
+    points=new PointND[distinct];
+    weights=new double[distinct];
+    distinct=0;
+    double probability;
+    for (i=0;i<n;i++)
+    {
+      if (draws[i]==0)
+        continue;
+      probability=(cumulative[i] - (i>0 ? cumulative[i-1] : 0))/cumulative[n-1];
+      points[distinct]=x[i];
+      weights[distinct]=draws[i]/(size*probability);
+      distinct++;
+    }
+  }
+
+  /**
+   * Return the points of the coreset
+  **/
+  public PointND[] getPoints()
+  {
+    return points;
+  }
+
+  /**
+   * Return the weight of each point of the coreset
+  **/
+  public double[] getWeights()
+  {
+    return weights;
+  }
+
+  /**
+   * Return the number of distinct points of the coreset
+  **/
+  public int size()
+  {
+    return points.length;
+  }
+}
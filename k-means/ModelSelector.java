@@ -0,0 +1,178 @@
+import java.util.Vector;
+import java.util.concurrent.*;
+
+/**
+ * Chooses the number of clusters k of the model of lowest MDL.
+ * Every k is tried several times (restarts), each run on its own kMeans instance, and the
+ * runs of several k are done at the same time on a pool of threads.
+ * With a warm start, one of the runs of k+1 starts from the best model with k clusters whose
+ * worst cluster is split in two (see kMeans.splitWorstCluster), the other runs are seeded as usual.
+ * The sweep stops once the MDL did not improve for a number of k in a row (patience).
+ * Each run can be refined by EM before its MDL is compared (see setRefinement).
+ * The best fitted model is kept so that it never has to be run again.
+**/
+public class ModelSelector
+{
+
+  final static int RESTARTS=3;           // default number of runs for each k
+  final static int PATIENCE=3;           // default number of k without improvement before stopping
+
+  private int restarts;                   // number of runs for each k
+  private int patience;                   // stop after this number of k without a lower MDL
+  private boolean warmStart;              // start one run of k+1 from the best model of k
+  private int method;                     // method of each run (see kMeans)
+  private int parallelism;                // number of runs at the same time
+  private int emIterations;               // maximum number of EM iterations of each run (0 for none)
+  private double[] bestMDL;               // lowest MDL found for each k (0 when k was not tried)
+
+  /**
+   * Set up the sweep
+  **/
+  public ModelSelector(int restarts,int patience,boolean warmStart,int method,int parallelism)
+  {
+    this.restarts=Math.max(restarts,1);
+    this.patience=Math.max(patience,1);
+    this.warmStart=warmStart;
+    this.method=method;
+    this.parallelism=Math.max(parallelism,1);
+  }
+
+  /**
+   * Refine each run by at most emIterations iterations of EM (none by default)
+  **/
+  public void setRefinement(int emIterations)
+  {
+    this.emIterations=emIterations;
+  }
+
+  /**
+   * Try 1 to maxk clusters on the points x and return the model of lowest MDL
+   * The results of the best run of each k are printed in the order of k
+   * A run which fails stops the sweep and its failure is thrown again
+  **/
+  public kMeans select(PointND[] x,int maxk,double epsilon)
+  {
+    return select(x,null,maxk,epsilon);
+  }
+
+  /**
+   * Same as above on weighted points (see Coreset)
+  **/
+  public kMeans select(PointND[] x,double[] weights,int maxk,double epsilon)
+  {
+    bestMDL=new double[maxk+1];
+    Vector<Vector<Future<kMeans>>> runs=new Vector<Vector<Future<kMeans>>>();
+    runs.setSize(maxk+1);
+    // number of k whose cold runs are submitted ahead of the k being waited for
+    int lookahead=Math.max((parallelism+restarts-1)/restarts,1);
+    ExecutorService pool=Executors.newFixedThreadPool(parallelism);
+    kMeans best=null;                     // model of lowest MDL over every k
+    kMeans previous=null;                 // best model with k-1 clusters
+    kMeans model, bestOfK;
+    int bestK=0;
+    int submitted=0;                      // largest k whose cold runs were submitted
+    try
+    {
+      for (int k=1;k<=maxk;k++)
+      {
+        // submit the runs of the next k which do not depend on the current one
+        while (submitted<Math.min(k+lookahead-1,maxk))
+        {
+          submitted++;
+          runs.set(submitted,new Vector<Future<kMeans>>());
+          for (int r=0;r<restarts;r++)
+            if (!warmStart || r>0 || submitted==1)
+              runs.get(submitted).add(pool.submit(new Run(x,weights,submitted,null,epsilon)));
+            else
+              runs.get(submitted).add(null);
+        }
+        if (warmStart && k>1)
+          runs.get(k).set(0,pool.submit(new Run(x,weights,k,previous.splitWorstCluster(),epsilon)));
+
+        // keep the best run of k
+        bestOfK=null;
+        for (int r=0;r<restarts;r++)
+        {
+          model=runs.get(k).get(r).get();
+          if (bestOfK==null || model.getMDL()<bestOfK.getMDL())
+            bestOfK=model;
+        }
+        runs.set(k,null);
+        bestMDL[k]=bestOfK.getMDL();
+        bestOfK.printResults();
+        if (best==null || bestOfK.getMDL()<best.getMDL())
+        {
+          best=bestOfK;
+          bestK=k;
+        }
+        previous=bestOfK;
+
+        // stop once the MDL has not improved for a while
+        if (k-bestK>=patience)
+        {
+          System.out.println("********************************************");
+          System.out.println("No lower MDL since " + bestK + " Gaussians, stopping at " + k);
+          break;
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while selecting k",e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException("A run of k-means failed",e.getCause());
+    }
+    finally
+    {
+      // drop the runs submitted ahead which are no longer needed
+      pool.shutdownNow();
+    }
+    return best;
+  }
+
+  /**
+   * Return the lowest MDL found with k clusters (0 if k was not tried)
+  **/
+  public double getMDL(int k)
+  {
+    return bestMDL[k];
+  }
+
+  /**
+   * A single run of k-means on its own instance, from the given means or seeded
+  **/
+  private class Run implements Callable<kMeans>
+  {
+    private PointND[] x;
+    private double[] weights;
+    private int k;
+    private PointND[] means;
+    private double epsilon;
+
+    Run(PointND[] x,double[] weights,int k,PointND[] means,double epsilon)
+    {
+      this.x=x;
+      this.weights=weights;
+      this.k=k;
+      this.means=means;
+      this.epsilon=epsilon;
+    }
+
+    public kMeans call()
+    {
+      kMeans model=new kMeans();
+      // the runs are already spread over the threads
+      model.setParallelism(1);
+      if (means==null)
+        model.run(x,weights,k,epsilon,method);
+      else
+        model.run(x,weights,means,epsilon,method);
+      if (emIterations>0)
+        model.refineEM(emIterations,kMeans.EMTOLERANCE);
+      return model;
+    }
+  }
+}
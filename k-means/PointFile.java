@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Points stored in a binary file and mapped in memory, so that the operating system pages
+ * them in and out as they are read and they never sit on the heap.
+ * The file starts with the number of points (a long), the number of coordinates (an int)
+ * and the number of bytes of a coordinate (an int, 4 for floats or 8 for doubles),
+ * followed by the coordinates of each point one after the other (big endian).
+ * A single mapping holds at most 2GB, so the file is mapped as segments of whole points.
+ * Points can be read by many threads at the same time.
+**/
+public class PointFile
+{
+
+  final static int HEADER=16;             // number of bytes before the first point
+  final static String EXTENSION=".bin";   // extension of the binary point files
+
+  private long size;                      // number of points
+  private int dimension;                  // number of coordinates of each point
+  private int bytes;                      // number of bytes of each coordinate (4 or 8)
+  private int stride;                     // number of bytes of each point
+  private long pointsPerSegment;          // number of points in each mapping
+  private MappedByteBuffer[] segments;    // the mappings of the points
+
+  /**
+   * Map the points of a binary file
+  **/
+  public PointFile(String filename) throws IOException
+  {
+    RandomAccessFile in=new RandomAccessFile(filename,"r");
+    size=in.readLong();
+    dimension=in.readInt();
+    bytes=in.readInt();
+    stride=dimension*bytes;
+    pointsPerSegment=Integer.MAX_VALUE/stride;
+    FileChannel channel=in.getChannel();
+    segments=new MappedByteBuffer[(int) ((size+pointsPerSegment-1)/pointsPerSegment)];
+    long first, count;
+    for (int s=0;s<segments.length;s++)
+    {
+      first=s*pointsPerSegment;
+      count=Math.min(pointsPerSegment,size-first);
+      segments[s]=channel.map(FileChannel.MapMode.READ_ONLY,HEADER+first*stride,count*stride);
+    }
+    // the mappings stay valid once the file is closed
+    in.close();
+  }
+
+  /**
+   * Read the coordinates of point i into point, which is returned
+  **/
+  public double[] read(long i,double[] point)
+  {
+    MappedByteBuffer segment=segments[(int) (i/pointsPerSegment)];
+    int offset=(int) (i%pointsPerSegment)*stride;
+    if (bytes==4)
+      for (int c=0;c<dimension;c++)
+        point[c]=segment.getFloat(offset+4*c);
+    else
+      for (int c=0;c<dimension;c++)
+        point[c]=segment.getDouble(offset+8*c);
+    return point;
+  }
+
+  /**
+   * Return m points drawn uniformly (with replacement), in the order of the file
+  **/
+  public PointND[] sample(int m)
+  {
+    m=(int) Math.min(m,size);
+    long[] positions=new long[m];
+    for (int s=0;s<m;s++)
+      positions[s]=(long) (Math.random()*size);
+    java.util.Arrays.sort(positions);
+    PointND[] points=new PointND[m];
+    for (int s=0;s<m;s++)
+    {
+      points[s]=new PointND(dimension);
+      read(positions[s],points[s].getCoordinates());
+    }
+    return points;
+  }
+
+  /**
+   * Return the number of points in the file
+  **/
+  public long size()
+  {
+    return size;
+  }
+
+  /**
+   * Return the number of coordinates of each point
+  **/
+  public int getDimension()
+  {
+    return dimension;
+  }
+
+  /**
+   * Write the points of a text data file (same format as DataSet) into a binary file,
+   * with each coordinate as a float or a double
+  **/
+  public static void convert(String textFile,String binaryFile,boolean floats) throws IOException
+  {
+    PointStream stream=new PointStream(textFile);
+    DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFile)));
+    out.writeLong(stream.size());
+    out.writeInt(stream.getDimension());
+    out.writeInt(floats ? 4 : 8);
+    PointND[] batch=new PointND[1024];
+    for (int i=0;i<batch.length;i++)
+      batch[i]=new PointND(stream.getDimension());
+    int count;
+    while ((count=stream.nextBatch(batch)) > 0)
+    {
+      for (int i=0;i<count;i++)
+        for (int c=0;c<stream.getDimension();c++)
+          if (floats)
+            out.writeFloat((float) batch[i].getCoordinate(c));
+          else
+            out.writeDouble(batch[i].getCoordinate(c));
+    }
+    stream.close();
+    out.close();
+  }
+
+  /**
+   * Takes a text data file and writes it as a binary point file
+  **/
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length!=2 && args.length!=3)
+    {
+      System.out.println("Wrong usage. Type java PointFile [text data file] [binary file] [float]");
+      System.out.println("The coordinates are written as doubles, or as floats if float is given");
+    }
+    else
+    {
+      convert(args[0],args[1],args.length==3 && args[2].equals("float"));
+    }
+  }
+}
@@ -89,9 +89,14 @@ public class PointND
   **/
   public double dist(PointND p2)
   {
-    PointND p1=new PointND(this);
-    (p1.subtract(p2));
-    return p1.norm();
+    double diff;
+    double sum=0;
+    for (int i=0;i<dimension;i++)
+    {
+      diff=coordinates[i] - p2.coordinates[i];
+      sum=sum + diff*diff;
+    }
+    return Math.sqrt(sum);
   }
 
   /**
@@ -110,25 +115,46 @@ public class PointND
     return max;
   }
 
+  /**
+   * Return the largest absolute value of the coordinates of this point
+  **/
+  public double maxAbs()
+  {
+    double value;
+    double max=Math.abs(coordinates[0]);
+    for (int i=1;i<dimension;i++)
+    {
+      value=Math.abs(coordinates[i]);
+      if (value > max)
+        max=value;
+    }
+    return max;
+  }
+
  /**
   * Return the probability of this point given it is normally distributed with a
   * a diagonal covariance matrix of coefficients sigma
  **/
  public double normal(PointND mean,PointND sigma)
   {
-    double mahalanobis;
-    double productSigma=1;
-    PointND temp=new PointND(this);
-    temp.subtract(mean);
-    // compute the product of the deviations and the mahalanobis distance
+    return Math.exp(logNormal(mean,sigma));
+  }
+
+  /**
+   * Return the log (base e) of the probability above, which does not underflow
+   * when the point is far from the mean or the dimension is high
+  **/
+  public double logNormal(PointND mean,PointND sigma)
+  {
+    double diff, deviation;
+    double logProba=-dimension/2.0 * Math.log(2*Math.PI);
     for (int i=0;i<dimension;i++)
     {
-      productSigma=sigma.getCoordinate(i) * productSigma;
-      temp.setCoordinate( i, temp.getCoordinate(i)/sigma.getCoordinate(i) );
+      deviation=sigma.coordinates[i];
+      diff=(coordinates[i] - mean.coordinates[i])/deviation;
+      logProba=logProba - Math.log(deviation) - diff*diff/2;
     }
-    mahalanobis=Math.pow(temp.norm(),2);
-    return ( 1.0/( Math.pow((2*Math.PI),dimension/2.0) * productSigma )
-            * Math.exp(-1.0/2 * mahalanobis) );
+    return logProba;
   }
 
   /**
@@ -0,0 +1,108 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.StringTokenizer;
+import java.io.IOException;
+
+/**
+ * Reads the points of a data file (same format as DataSet) a batch at a time
+ * so that the whole file never has to be held in memory.
+**/
+public class PointStream
+{
+
+  private String filename;              // the data file
+  private BufferedReader in;            // reader positioned on the next point
+  private int size;                     // number of points in the file
+  private int dimension;                // number of coordinates of each point
+  private int position;                 // number of points read so far
+
+  /**
+   * Open the data file and read its first line (number of points and of attributes)
+  **/
+  public PointStream(String filename)
+  {
+    this.filename=filename;
+    reset();
+  }
+
+  /**
+   * Go back to the first point of the file
+  **/
+  public void reset()
+  {
+    try
+    {
+      close();
+      in=new BufferedReader(new FileReader(filename));
+      StringTokenizer st=new StringTokenizer(in.readLine());
+      size=Integer.parseInt(st.nextToken());
+      dimension=Integer.parseInt(st.nextToken());
+      position=0;
+    }
+    catch (IOException e)
+    {
+      System.err.println(e.toString());
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Read the next points into batch, whose points are overwritten
+   * Returns the number of points read, 0 once the whole file was read
+  **/
+  public int nextBatch(PointND[] batch)
+  {
+    int count=0;
+    try
+    {
+      StringTokenizer st;
+      while (count<batch.length && position<size)
+      {
+        st=new StringTokenizer(in.readLine());
+        for (int i=0;i<dimension;i++)
+          batch[count].setCoordinate(i,Double.parseDouble(st.nextToken()));
+        count++;
+        position++;
+      }
+    }
+    catch (IOException e)
+    {
+      System.err.println(e.toString());
+      e.printStackTrace();
+    }
+    return count;
+  }
+
+  /**
+   * Close the file
+  **/
+  public void close()
+  {
+    try
+    {
+      if (in!=null)
+        in.close();
+      in=null;
+    }
+    catch (IOException e)
+    {
+      System.err.println(e.toString());
+    }
+  }
+
+  /**
+   * Return the number of points in the file
+  **/
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Return the number of coordinates of each point
+  **/
+  public int getDimension()
+  {
+    return dimension;
+  }
+}
@@ -4,21 +4,50 @@
 **/
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class kMeans
 {
 
+  final static int LLOYD=0;               // compare each point to every mean
+  final static int ELKAN=1;               // skip distances with a lower bound per point and mean
+  final static int HAMERLY=2;             // skip distances with a single lower bound per point
+  final static int PARALLEL=3;            // Lloyd with the points split across threads
+  final static int BLOCKSIZE=1024;        // number of points handled by a single task of PARALLEL
+  final static int MAXPASSES=5;           // maximum number of passes over a file of runMiniBatch
+  final static int SAMPLESIZE=10000;      // number of points used to find the quality of runMiniBatch
+  final static int CORESETSIZE=10000;     // number of points drawn for a coreset (see Coreset)
+  final static double SLACK=1e-9;         // relative margin on the bounds for rounding errors
+  final static int RANDOMSEED=0;          // initial means drawn uniformly from the points
+  final static int PLUSPLUS=1;            // initial means drawn by k-means++
+  final static int SCALABLE=2;            // initial means drawn by k-means|| (parallel k-means++)
+  final static int ROUNDS=5;              // number of oversampling rounds of k-means||
+  final static int EMITERATIONS=100;      // maximum number of iterations of refineEM
+  final static double EMTOLERANCE=1e-6;   // relative gain of log likelihood under which refineEM stops
+  final static double VARIANCEFLOOR=1e-6; // smallest variance of a class, relative to that of all the points
+
   private int n;                          // number of instances to classify
   private int d;                          // number of coordinates of each point
   private int k;                          // number of clusters
   private PointND[] mu;                   // coordinate of means mu[j] of each cluster j
-  private Vector[] w;                     // holds the points classified into each class w[j]
+  private PointND[] x;                    // the points classified (null if they are read from file)
+  private PointFile file;                 // the file of the points if they do not fit in memory
+  private double[] weight;                // weight of each point x[i] (null if each point weighs 1)
+  private double totalWeight;             // sum of the weights of the points
+  private int[] assignment;               // class of each point x[i]
+  private double[] count;                 // weight of the points in each class j (their number if unweighted)
+  private double[] sum;                   // sum of the points of each class, one after the other
+  private double[] sumSq;                 // sum of the squared coordinates of each class, same layout
   private PointND[] sigma;                // holds the standard deviation of each class i
   private double[] prior;                 // holds the prior of each class i
   private double logLikelihood;           // holds the log likelihood of each of the k Gaussians
   private double MDL;                     // the minimum description length of the model
   private int numIterations;
+  private int numEMIterations;             // number of iterations of refineEM
+  private int parallelism=Runtime.getRuntime().availableProcessors();  // number of threads of PARALLEL
+  private ForkJoinPool pool;              // threads of PARALLEL, of the seeding and of EM, made once (see getPool)
+  private int seeding=PLUSPLUS;           // how the initial means are drawn
 
   /**
    * Default constructor
@@ -29,41 +58,419 @@ public class kMeans
 
   /**
    * Intialize the parameters of the k-means algorithm
-   * Randomly assign a point in x to each mean mu[j]
+   * Assign a point in x to each mean mu[j] (see setSeeding), unless initial means are given
+   * Each point weighs 1 unless weights are given
   **/
-  private void init(PointND[] x,int k)
+  private void init(PointND[] x,double[] weights,int k,PointND[] means)
   {
     this.n=x.length;
     this.d=x[0].getDimension();
     this.k=k;
     this.mu=new PointND[k];
-    this.w=new Vector[k];
+    this.x=x;
+    this.file=null;
+    setWeights(weights);
+    this.assignment=new int[n];
+    this.count=new double[k];
+    this.sum=new double[k*d];
+    this.sumSq=new double[k*d];
     this.numIterations=0;
+    this.numEMIterations=0;
     this.sigma=new PointND[k];
     this.prior=new double[k];
 
-    // randomly assign a point in x to each mean mu[j]
-    PointND randomPoint;
+    // assign a point in x to each mean mu[j]
+    if (means!=null)
+      for (int j=0;j<k;j++)
+        mu[j]=new PointND(means[j]);
+    else if (seeding==SCALABLE)
+      seedScalable(x);
+    else if (seeding==PLUSPLUS)
+      seedPlusPlus(x);
+    else
+      for (int j=0;j<k;j++)
+        mu[j]=new PointND(x[weight==null ? (int)(Math.random()*n) : draw(weight,weight)]);
     for (int j=0;j<k;j++)
     {
-      randomPoint=x[(int)(Math.random()*(n-1))];
-      mu[j]=new PointND(randomPoint);
       // each prior and standard deviation are set to zero
       sigma[j]=new PointND(d);
       prior[j]=0;
     }
   }
 
+  /**
+   * Set the weight of each point (1 for each point if weights is null) and their sum
+  **/
+  private void setWeights(double[] weights)
+  {
+    this.weight=weights;
+    totalWeight=n;
+    if (weights!=null)
+    {
+      totalWeight=0;
+      for (int i=0;i<n;i++)
+        totalWeight=totalWeight + weights[i];
+    }
+  }
+
+  /**
+   * Return the point x[i], read into buffer if the points are in a file
+  **/
+  private PointND getPoint(int i,PointND buffer)
+  {
+    if (file==null)
+      return x[i];
+    file.read(i,buffer.getCoordinates());
+    return buffer;
+  }
+
+  /**
+   * Return the weight of the point x[i]
+  **/
+  private double weightOf(int i)
+  {
+    return weight==null ? 1 : weight[i];
+  }
+
+  /**
+   * Set how the initial means are drawn: RANDOMSEED, PLUSPLUS (by default) or SCALABLE
+   * k-means++ starts from means far apart, which needs fewer iterations and leaves fewer
+   * classes empty, but draws the means one after the other with a pass over the points each.
+   * k-means|| draws many candidates at once in a few parallel passes, then runs k-means++
+   * on the candidates weighted by their number of closest points, which is faster for large n.
+  **/
+  public void setSeeding(int seeding)
+  {
+    this.seeding=seeding;
+  }
+
+  /**
+   * k-means++ on the weighted points of x
+  **/
+  private void seedPlusPlus(PointND[] x)
+  {
+    double[] weights=weight;
+    if (weights==null)
+    {
+      weights=new double[n];
+      Arrays.fill(weights,1);
+    }
+    int[] chosen=plusPlus(x,weights,k);
+    for (int j=0;j<k;j++)
+      mu[j]=new PointND(x[chosen[j]]);
+  }
+
+  /**
+   * k-means++ on weighted points: the first point is drawn with a probability proportional
+   * to its weight, each next one proportional to its weight times its squared distance
+   * to the closest point drawn so far
+   * Returns the indexes of the k points drawn
+  **/
+  static int[] plusPlus(PointND[] points,double[] weights,int k)
+  {
+    int m=points.length;
+    double[] dist2=new double[m];         // squared distance to the closest point drawn
+    double[] mass=new double[m];          // probability of each point to be drawn, up to a factor
+    int[] chosen=new int[k];
+    double dist;
+    for (int i=0;i<m;i++)
+    {
+      dist2[i]=Double.POSITIVE_INFINITY;
+      mass[i]=weights[i];
+    }
+    for (int j=0;j<k;j++)
+    {
+      chosen[j]=draw(mass,weights);
+      for (int i=0;i<m;i++)
+      {
+        dist=squaredDist(points[i],points[chosen[j]]);
+        if (dist<dist2[i])
+          dist2[i]=dist;
+        mass[i]=weights[i]*dist2[i];
+      }
+    }
+    return chosen;
+  }
+
+  /**
+   * Return an index drawn with a probability proportional to its mass,
+   * or to its weight if every mass is zero (every point was drawn)
+  **/
+  private static int draw(double[] mass,double[] weights)
+  {
+    double total=0;
+    for (int i=0;i<mass.length;i++)
+      total=total + mass[i];
+    if (total==0)
+      return draw(weights,weights);
+    double r=Math.random()*total;
+    int last=0;
+    for (int i=0;i<mass.length;i++)
+    {
+      if (mass[i]>0)
+      {
+        last=i;
+        r=r-mass[i];
+        if (r<0)
+          return i;
+      }
+    }
+    return last;
+  }
+
+  /**
+   * k-means|| (Bahmani et al.) on the weighted points of x
+   * Starting from a random point, each of ROUNDS rounds draws every point independently
+   * with probability 2k times its weighted squared distance to the closest candidate over the
+   * sum of these distances, on as many threads as set by setParallelism.
+   * The candidates are then weighted by the weight of their closest points
+   * and reduced to k means by k-means++.
+  **/
+  private void seedScalable(PointND[] x)
+  {
+    double[] dist2=new double[n];         // squared distance to the closest candidate
+    int[] closest=new int[n];             // closest candidate
+    int[] candidates=new int[4*k*ROUNDS+1];
+    int numCandidates=1;
+    boolean[] selected;
+    SeedTask task;
+    for (int i=0;i<n;i++)
+      dist2[i]=Double.POSITIVE_INFINITY;
+    candidates[0]=weight==null ? (int)(Math.random()*n) : draw(weight,weight);
+
+    task=new SeedTask(SeedTask.UPDATE,x,dist2,closest,candidates,0,1,0,0,null,0,n);
+    getPool().invoke(task);
+    for (int round=0;round<ROUNDS && task.cost>0;round++)
+    {
+      // draw the new candidates
+      selected=new boolean[n];
+      getPool().invoke(new SeedTask(SeedTask.SAMPLE,x,dist2,closest,candidates,0,0,2.0*k/task.cost,
+                                    (long)(Math.random()*Long.MAX_VALUE),selected,0,n));
+      int from=numCandidates;
+      for (int i=0;i<n;i++)
+      {
+        if (!selected[i])
+          continue;
+        if (numCandidates==candidates.length)
+        {
+          int[] larger=new int[2*numCandidates];
+          System.arraycopy(candidates,0,larger,0,numCandidates);
+          candidates=larger;
+        }
+        candidates[numCandidates++]=i;
+      }
+      // move the points closer to the new candidates
+      task=new SeedTask(SeedTask.UPDATE,x,dist2,closest,candidates,from,numCandidates,0,0,null,0,n);
+      getPool().invoke(task);
+    }
+
+    // too few candidates (few distinct points), fall back on k-means++
+    if (numCandidates<k)
+    {
+      seedPlusPlus(x);
+      return;
+    }
+    PointND[] points=new PointND[numCandidates];
+    double[] weights=new double[numCandidates];
+    for (int c=0;c<numCandidates;c++)
+      points[c]=x[candidates[c]];
+    for (int i=0;i<n;i++)
+      weights[closest[i]]=weights[closest[i]] + weightOf(i);
+    int[] chosen=plusPlus(points,weights,k);
+    for (int j=0;j<k;j++)
+      mu[j]=new PointND(points[chosen[j]]);
+  }
+
+  /**
+   * Return the squared euclidian distance between two points
+  **/
+  static double squaredDist(PointND p1,PointND p2)
+  {
+    double[] c1=p1.getCoordinates();
+    double[] c2=p2.getCoordinates();
+    double diff;
+    double sum=0;
+    for (int i=0;i<c1.length;i++)
+    {
+      diff=c1[i]-c2[i];
+      sum=sum + diff*diff;
+    }
+    return sum;
+  }
+
+  /**
+   * Fork/join task of k-means|| on the points from start to end (excluded)
+   * UPDATE moves each point to the candidates from first to last (excluded) if closer
+   * and sums the weighted squared distances to the closest candidates into cost.
+   * SAMPLE selects each point with probability factor times its weighted squared distance,
+   * the random numbers of a block only depend on seed and the block.
+  **/
+  private class SeedTask extends RecursiveAction
+  {
+    final static int UPDATE=0;
+    final static int SAMPLE=1;
+
+    private int job;
+    private PointND[] x;
+    private double[] dist2;
+    private int[] closest;
+    private int[] candidates;
+    private int first;
+    private int last;
+    private double factor;
+    private long seed;
+    private boolean[] selected;
+    private int start;
+    private int end;
+    double cost;                          // sum of the weighted squared distances to the closest candidates
+
+    SeedTask(int job,PointND[] x,double[] dist2,int[] closest,int[] candidates,int first,int last,
+             double factor,long seed,boolean[] selected,int start,int end)
+    {
+      this.job=job;
+      this.x=x;
+      this.dist2=dist2;
+      this.closest=closest;
+      this.candidates=candidates;
+      this.first=first;
+      this.last=last;
+      this.factor=factor;
+      this.seed=seed;
+      this.selected=selected;
+      this.start=start;
+      this.end=end;
+    }
+
+    protected void compute()
+    {
+      if (end-start > BLOCKSIZE)
+      {
+        // split on a multiple of BLOCKSIZE
+        int middle=start + ((end-start)/BLOCKSIZE/2)*BLOCKSIZE;
+        if (middle==start)
+          middle=start+BLOCKSIZE;
+        SeedTask left=new SeedTask(job,x,dist2,closest,candidates,first,last,factor,seed,selected,start,middle);
+        SeedTask right=new SeedTask(job,x,dist2,closest,candidates,first,last,factor,seed,selected,middle,end);
+        invokeAll(left,right);
+        cost=left.cost + right.cost;
+        return;
+      }
+      if (job==SAMPLE)
+      {
+        Random random=new Random(seed + start);
+        for (int i=start;i<end;i++)
+          if (random.nextDouble() < factor*weightOf(i)*dist2[i])
+            selected[i]=true;
+        return;
+      }
+      double dist;
+      for (int i=start;i<end;i++)
+      {
+        for (int c=first;c<last;c++)
+        {
+          dist=squaredDist(x[i],x[candidates[c]]);
+          if (dist<dist2[i])
+          {
+            dist2[i]=dist;
+            closest[i]=c;
+          }
+        }
+        cost=cost + weightOf(i)*dist2[i];
+      }
+    }
+  }
+
   /**
    * Runs the k-means algorithm with k clusters on the set of instances x
    * Then find the quality of the model
   **/
   public void run(PointND[] x,int k,double epsilon)
+  {
+    run(x,k,epsilon,LLOYD);
+  }
+
+  /**
+   * Same as above with the given method (LLOYD, ELKAN, HAMERLY or PARALLEL)
+   * Elkan and Hamerly give the same clusters as Lloyd but skip most distances
+   * once the means move little, Elkan needs n*k bounds and does best with many clusters
+   * Parallel runs Lloyd iterations on many threads (see setParallelism)
+  **/
+  public void run(PointND[] x,int k,double epsilon,int method)
+  {
+    run(x,null,k,epsilon,method);
+  }
+
+  /**
+   * Runs the k-means algorithm on the points x, each with the given weight
+   * (a weighted point counts as that many points, see Coreset)
+  **/
+  public void run(PointND[] x,double[] weights,int k,double epsilon,int method)
+  {
+    // initialize n,k,mu[j]
+    init(x,weights,k,null);
+    iterate(x,epsilon,method);
+  }
+
+  /**
+   * Runs the k-means algorithm from the given initial means (k is the number of means)
+  **/
+  public void run(PointND[] x,PointND[] means,double epsilon,int method)
+  {
+    run(x,null,means,epsilon,method);
+  }
+
+  /**
+   * Same as above on weighted points
+  **/
+  public void run(PointND[] x,double[] weights,PointND[] means,double epsilon,int method)
+  {
+    init(x,weights,means.length,means);
+    iterate(x,epsilon,method);
+  }
+
+  /**
+   * Runs the k-means algorithm on the points of a binary file mapped in memory (see PointFile)
+   * Only the means and the class of each point are kept on the heap: the means are drawn
+   * from a uniform sample of the points, then each Lloyd iteration reads the file
+   * on as many threads as set by setParallelism, each thread on its own blocks of points.
+  **/
+  public void run(PointFile file,int k,double epsilon)
+  {
+    // draw the means from the sample as if it were all the points
+    init(file.sample(SAMPLESIZE),null,k,null);
+    this.x=null;
+    this.file=file;
+    this.n=(int) file.size();
+    setWeights(null);
+    this.assignment=new int[n];
+    runParallel(null,epsilon);
+    modelQuality();
+  }
+
+  /**
+   * Iterate the chosen method from the current means until convergence
+  **/
+  private void iterate(PointND[] x,double epsilon,int method)
+  {
+    if (method==ELKAN)
+      runElkan(x,epsilon);
+    else if (method==HAMERLY)
+      runHamerly(x,epsilon);
+    else if (method==PARALLEL)
+      runParallel(x,epsilon);
+    else
+      runLloyd(x,epsilon);
+    // now we find the quality of the model
+    modelQuality();
+  }
+
+  /**
+   * Lloyd iterations: classify each point to the nearest mean, then recompute the means
+  **/
+  private void runLloyd(PointND[] x,double epsilon)
   {
     double maxDeltaMeans=epsilon+1;
     PointND[] oldMeans=new PointND[k];
-    // initialize n,k,mu[j]
-    init(x,k);
     // iterate until there is no change in mu[j]
     while (maxDeltaMeans > epsilon)
     {
@@ -73,46 +480,521 @@ public class kMeans
         oldMeans[j]=new PointND(mu[j]);
       }
       // classify each instance x[i] to its nearest class
-      // first we need to clear the class array since we are reclassifying
+      // first we need to clear the statistics of the classes since we are reclassifying
+      clearStats();
+      for (int i=0;i<n;i++)
+      {
+        classify(i);
+      }
+      // recompute each mean
+      computeMeans();
+      // compute the largest change in mu[j]
+      maxDeltaMeans=maxDeltaMeans(oldMeans);
+      numIterations++;
+    }
+  }
+
+  /**
+   * Lloyd iterations on many threads
+   * The points are split into blocks of BLOCKSIZE, each task classifies the points of a block
+   * and sums them per class in primitive arrays. The sums are added two by two up the
+   * tree of tasks, which splits at the same points whatever the number of threads,
+   * so the means do not depend on the number of threads.
+   * The statistics of the classes are those summed by the tasks.
+  **/
+  private void runParallel(PointND[] x,double epsilon)
+  {
+    double maxDeltaMeans=epsilon+1;
+    PointND[] oldMeans=new PointND[k];
+    double[] means=new double[k*d];       // the means one after the other, read by the tasks
+    AssignTask task;
+    while (maxDeltaMeans > epsilon)
+    {
+      // remember old values of the each mean
       for (int j=0;j<k;j++)
       {
-        w[j]=new Vector();        // could use clear but then have to init...
+        oldMeans[j]=new PointND(mu[j]);
+        System.arraycopy(mu[j].getCoordinates(),0,means,j*d,d);
+      }
+      // classify each instance and sum the instances of each class
+      task=new AssignTask(x,means,assignment,0,n);
+      getPool().invoke(task);
+      count=task.counts;
+      sum=task.sums;
+      sumSq=task.sumSqs;
+      // recompute each mean
+      computeMeans();
+      // compute the largest change in mu[j]
+      maxDeltaMeans=maxDeltaMeans(oldMeans);
+      numIterations++;
+    }
+  }
+
+  /**
+   * Mini-batch k-means on the points of a data file, read batchSize points at a time
+   * so that the data never has to fit in memory (Sculley's web-scale k-means)
+   * The means start at random points of the first batch. Each batch is classified with
+   * the current means, then each of its points moves its mean towards it with a rate of
+   * 1/(number of points the mean has seen), so that each mean is the average of its points.
+   * Stops after maxPasses over the file or once a pass moved the means by at most epsilon.
+   * The quality of the model is found on a uniform sample of sampleSize points kept while
+   * reading the file (reservoir sampling), the points of the model are then those of the sample.
+  **/
+  public void runMiniBatch(String filename,int k,int batchSize,int maxPasses,double epsilon,int sampleSize)
+  {
+    PointStream stream=new PointStream(filename);
+    PointND[] batch=new PointND[batchSize];
+    for (int i=0;i<batchSize;i++)
+      batch[i]=new PointND(stream.getDimension());
+    int[] classes=new int[batchSize];     // class of each point of the batch
+    int[] counts=new int[k];              // number of points seen by each mean
+    PointND[] sample=new PointND[Math.min(sampleSize,stream.size())];
+    int seen=0;                           // number of points read in the first pass
+    PointND[] oldMeans=new PointND[k];
+    double maxDeltaMeans=epsilon+1;
+    double rate;
+    double[] mean, point;
+    int read;                             // number of points in the current batch
+    int j, r;
+
+    // the means start at random points of the first batch
+    read=stream.nextBatch(batch);
+    PointND[] first=new PointND[read];
+    System.arraycopy(batch,0,first,0,read);
+    init(first,null,k,null);
+
+    for (int pass=0;pass<maxPasses && maxDeltaMeans > epsilon;pass++)
+    {
+      stream.reset();
+      // remember old values of the each mean
+      for (j=0;j<k;j++)
+        oldMeans[j]=new PointND(mu[j]);
+      while ((read=stream.nextBatch(batch)) > 0)
+      {
+        // keep a uniform sample of the points read
+        if (pass==0)
+        {
+          for (int i=0;i<read;i++)
+          {
+            r=seen;
+            if (seen>=sample.length)
+              r=(int)(Math.random()*(seen+1));
+            if (r<sample.length)
+              sample[r]=new PointND(batch[i]);
+            seen++;
+          }
+        }
+        // classify the batch with the current means, then move each mean towards its points
+        for (int i=0;i<read;i++)
+          classes[i]=nearestClass(batch[i]);
+        for (int i=0;i<read;i++)
+        {
+          j=classes[i];
+          counts[j]++;
+          rate=1.0/counts[j];
+          mean=mu[j].getCoordinates();
+          point=batch[i].getCoordinates();
+          for (int c=0;c<d;c++)
+            mean[c]=mean[c] + rate*(point[c]-mean[c]);
+        }
+        numIterations++;
+      }
+      // compute the largest change in mu[j] over the pass
+      maxDeltaMeans=maxDeltaMeans(oldMeans);
+    }
+    stream.close();
+
+    // find the quality of the model on the sample
+    this.x=sample;
+    this.n=sample.length;
+    setWeights(null);
+    this.assignment=new int[n];
+    clearStats();
+    for (int i=0;i<n;i++)
+      classify(i);
+    modelQuality();
+  }
+
+  /**
+   * Set the number of threads of the PARALLEL method (the number of processors by default)
+  **/
+  public void setParallelism(int parallelism)
+  {
+    this.parallelism=parallelism;
+    if (pool!=null)
+      pool.shutdown();
+    pool=null;
+  }
+
+  /**
+   * Return the pool of threads of this kMeans, made on first use with parallelism threads
+  **/
+  private ForkJoinPool getPool()
+  {
+    if (pool==null)
+      pool=new ForkJoinPool(parallelism);
+    return pool;
+  }
+
+  /**
+   * Fork/join task classifying the points from start to end (excluded)
+   * and summing the weighted points of each class
+   * The points are x, or read one after the other from the file if x is null
+  **/
+  private class AssignTask extends RecursiveAction
+  {
+    private PointND[] x;
+    private double[] means;
+    private int[] assignment;
+    private int start;
+    private int end;
+    double[] sums;                        // sum of the points of each class, one after the other
+    double[] sumSqs;                      // sum of the squared coordinates of each class
+    double[] counts;                      // weight of the points of each class
+
+    AssignTask(PointND[] x,double[] means,int[] assignment,int start,int end)
+    {
+      this.x=x;
+      this.means=means;
+      this.assignment=assignment;
+      this.start=start;
+      this.end=end;
+    }
+
+    protected void compute()
+    {
+      if (end-start > BLOCKSIZE)
+      {
+        // split on a multiple of BLOCKSIZE
+        int middle=start + ((end-start)/BLOCKSIZE/2)*BLOCKSIZE;
+        if (middle==start)
+          middle=start+BLOCKSIZE;
+        AssignTask left=new AssignTask(x,means,assignment,start,middle);
+        AssignTask right=new AssignTask(x,means,assignment,middle,end);
+        invokeAll(left,right);
+        sums=left.sums;
+        sumSqs=left.sumSqs;
+        counts=left.counts;
+        for (int c=0;c<sums.length;c++)
+        {
+          sums[c]=sums[c]+right.sums[c];
+          sumSqs[c]=sumSqs[c]+right.sumSqs[c];
+        }
+        for (int j=0;j<k;j++)
+          counts[j]=counts[j]+right.counts[j];
+        return;
+      }
+      sums=new double[k*d];
+      sumSqs=new double[k*d];
+      counts=new double[k];
+      double[] point;
+      double[] buffer=new double[d];
+      double dist, diff, smallestDist, w;
+      int nearestClass, offset;
+      for (int i=start;i<end;i++)
+      {
+        // nearest mean by squared distance, the first one on ties
+        if (x==null)
+          point=file.read(i,buffer);
+        else
+          point=x[i].getCoordinates();
+        smallestDist=Double.POSITIVE_INFINITY;
+        nearestClass=0;
+        for (int j=0;j<k;j++)
+        {
+          dist=0;
+          offset=j*d;
+          for (int c=0;c<d;c++)
+          {
+            diff=point[c]-means[offset+c];
+            dist=dist + diff*diff;
+          }
+          if (dist<smallestDist)
+          {
+            smallestDist=dist;
+            nearestClass=j;
+          }
+        }
+        assignment[i]=nearestClass;
+        w=weightOf(i);
+        counts[nearestClass]=counts[nearestClass]+w;
+        offset=nearestClass*d;
+        for (int c=0;c<d;c++)
+        {
+          sums[offset+c]=sums[offset+c]+w*point[c];
+          sumSqs[offset+c]=sumSqs[offset+c]+w*point[c]*point[c];
+        }
       }
+    }
+  }
 
+  /**
+   * Elkan's iterations
+   * Each point keeps an upper bound on the distance to its mean and a lower bound on the
+   * distance to every other mean, moved by how far the means moved.
+   * The distance to mean j is skipped if its lower bound, or half the distance between
+   * the two means, is above the upper bound: the point cannot be closer to j.
+   * Bounds are strict so that ties are always computed and broken as Lloyd does.
+  **/
+  private void runElkan(PointND[] x,double epsilon)
+  {
+    double maxDeltaMeans=epsilon+1;
+    PointND[] oldMeans=new PointND[k];
+    double[] upper=new double[n];
+    double[][] lower=new double[n][k];
+    boolean[] stale=new boolean[n];       // upper bound is not an exact distance
+    double[][] halfDist=new double[k][k]; // half the distance between the means
+    double[] closest=new double[k];       // half the distance of each mean to the closest one
+    double[] drift=new double[k];
+    double dist;
+    int a;
+
+    // the first iteration computes every distance
+    for (int i=0;i<n;i++)
+    {
+      a=0;
+      for (int j=0;j<k;j++)
+      {
+        lower[i][j]=x[i].dist(mu[j]);
+        if (lower[i][j]<lower[i][a])
+          a=j;
+      }
+      assignment[i]=a;
+      upper[i]=lower[i][a];
+    }
+    while (true)
+    {
+      for (int j=0;j<k;j++)
+        oldMeans[j]=new PointND(mu[j]);
+      computeStats();
+      computeMeans();
+      for (int j=0;j<k;j++)
+        drift[j]=oldMeans[j].dist(mu[j]);
+      // compute the largest change in mu[j]
+      maxDeltaMeans=maxDeltaMeans(oldMeans);
+      numIterations++;
+      if (maxDeltaMeans <= epsilon)
+        break;
+
+      // move the bounds by how far each mean moved
       for (int i=0;i<n;i++)
       {
-        classify(x[i]);
+        for (int j=0;j<k;j++)
+          lower[i][j]=Math.max(lower[i][j]-drift[j],0)*(1-SLACK);
+        upper[i]=(upper[i]+drift[assignment[i]])*(1+SLACK);
+        stale[i]=true;
       }
-      // recompute each mean
+      computeHalfDistances(halfDist,closest);
+
+      // classify each instance x[i] to its nearest class
+      for (int i=0;i<n;i++)
+      {
+        a=assignment[i];
+        if (upper[i]<closest[a])
+          continue;
+        for (int j=0;j<k;j++)
+        {
+          if (j==a || upper[i]<lower[i][j] || upper[i]<halfDist[a][j])
+            continue;
+          // tighten the upper bound before computing the distance to j
+          if (stale[i])
+          {
+            upper[i]=x[i].dist(mu[a]);
+            lower[i][a]=upper[i];
+            stale[i]=false;
+            if (upper[i]<lower[i][j] || upper[i]<halfDist[a][j])
+              continue;
+          }
+          dist=x[i].dist(mu[j]);
+          lower[i][j]=dist;
+          if (dist<upper[i] || (dist==upper[i] && j<a))
+          {
+            a=j;
+            upper[i]=dist;
+          }
+        }
+        assignment[i]=a;
+      }
+    }
+  }
+
+  /**
+   * Hamerly's iterations
+   * Each point keeps an upper bound on the distance to its mean and a single lower bound
+   * on the distance to any other mean. The point keeps its mean if the upper bound is below
+   * the lower bound or half the distance of its mean to the closest other mean,
+   * otherwise every distance is computed.
+  **/
+  private void runHamerly(PointND[] x,double epsilon)
+  {
+    double maxDeltaMeans=epsilon+1;
+    PointND[] oldMeans=new PointND[k];
+    double[] upper=new double[n];
+    double[] lower=new double[n];
+    double[][] halfDist=new double[k][k];
+    double[] closest=new double[k];
+    double[] drift=new double[k];
+    double maxDrift, bound;
+    int a;
+
+    // the first iteration computes every distance
+    for (int i=0;i<n;i++)
+      nearestTwo(x[i],i,assignment,upper,lower);
+    while (true)
+    {
+      for (int j=0;j<k;j++)
+        oldMeans[j]=new PointND(mu[j]);
+      computeStats();
       computeMeans();
+      maxDrift=0;
+      for (int j=0;j<k;j++)
+      {
+        drift[j]=oldMeans[j].dist(mu[j]);
+        if (drift[j]>maxDrift)
+          maxDrift=drift[j];
+      }
       // compute the largest change in mu[j]
       maxDeltaMeans=maxDeltaMeans(oldMeans);
       numIterations++;
+      if (maxDeltaMeans <= epsilon)
+        break;
+
+      // move the bounds by how far the means moved
+      computeHalfDistances(halfDist,closest);
+
+      // classify each instance x[i] to its nearest class
+      for (int i=0;i<n;i++)
+      {
+        a=assignment[i];
+        upper[i]=(upper[i]+drift[a])*(1+SLACK);
+        lower[i]=Math.max(lower[i]-maxDrift,0)*(1-SLACK);
+        bound=Math.max(closest[a],lower[i]);
+        if (upper[i]<bound)
+          continue;
+        // tighten the upper bound and check again
+        upper[i]=x[i].dist(mu[a]);
+        if (upper[i]<bound)
+          continue;
+        nearestTwo(x[i],i,assignment,upper,lower);
+      }
     }
-    // now we find the quality of the model
-    modelQuality(x);
+  }
+
+  /**
+   * Assign point x (the i-th) to its nearest mean as classify does,
+   * with its distance as upper bound and the distance to the second nearest mean as lower bound
+  **/
+  private void nearestTwo(PointND x,int i,int[] assignment,double[] upper,double[] lower)
+  {
+    double dist;
+    double smallestDist=x.dist(mu[0]);
+    double secondDist=Double.POSITIVE_INFINITY;
+    int nearestClass=0;
+    for (int j=1;j<k;j++)
+    {
+      dist=x.dist(mu[j]);
+      if (dist<smallestDist)
+      {
+        secondDist=smallestDist;
+        smallestDist=dist;
+        nearestClass=j;
+      }
+      else if (dist<secondDist)
+        secondDist=dist;
+    }
+    assignment[i]=nearestClass;
+    upper[i]=smallestDist;
+    lower[i]=secondDist;
+  }
+
+  /**
+   * Compute half the distance between every two means, shrunk by the slack,
+   * and half the distance of each mean to the closest other mean
+  **/
+  private void computeHalfDistances(double[][] halfDist,double[] closest)
+  {
+    for (int j=0;j<k;j++)
+      closest[j]=Double.POSITIVE_INFINITY;
+    for (int j=0;j<k;j++)
+    {
+      for (int l=j+1;l<k;l++)
+      {
+        halfDist[j][l]=mu[j].dist(mu[l])/2*(1-SLACK);
+        halfDist[l][j]=halfDist[j][l];
+        if (halfDist[j][l]<closest[j])
+          closest[j]=halfDist[j][l];
+        if (halfDist[j][l]<closest[l])
+          closest[l]=halfDist[j][l];
+      }
+    }
+  }
+
+  /**
+   * Set the count, sum and sum of squares of each class to zero
+  **/
+  private void clearStats()
+  {
+    Arrays.fill(count,0);
+    Arrays.fill(sum,0);
+    Arrays.fill(sumSq,0);
+  }
+
+  /**
+   * Put the point x[i] into class j and add it, weighted, to the statistics of the class
+  **/
+  private void assign(int i,int j)
+  {
+    assignment[i]=j;
+    double w=weightOf(i);
+    count[j]=count[j]+w;
+    double[] point=x[i].getCoordinates();
+    int offset=j*d;
+    for (int c=0;c<d;c++)
+    {
+      sum[offset+c]=sum[offset+c]+w*point[c];
+      sumSq[offset+c]=sumSq[offset+c]+w*point[c]*point[c];
+    }
+  }
+
+  /**
+   * Recompute the statistics of each class from the assignment of the points
+  **/
+  private void computeStats()
+  {
+    clearStats();
+    for (int i=0;i<n;i++)
+      assign(i,assignment[i]);
   }
 
   /**
    * Find the quality of the model
   **/
-  private void modelQuality(PointND[] x)
+  private void modelQuality()
   {
     // compute the standard deviation of each cluster
     computeDeviation();
     // compute the prior of each cluster
     computePriors();
     // compute the log likelihood of each cluster
-    computeLogLikelihood(x);
+    computeLogLikelihood();
     // find the minimum description length of the model
     computeMDL();
   }
 
 
   /**
-   * Classifies the point x to the nearest class
+   * Classifies the point x[i] to the nearest class
   **/
-  private void classify(PointND x)
+  private void classify(int i)
+  {
+    // classify x[i] into class its nearest class
+    assign(i,nearestClass(x[i]));
+  }
+
+  /**
+   * Return the class of the mean nearest to the point x
+  **/
+  private int nearestClass(PointND x)
   {
     double dist=0;
     double smallestDist;
@@ -132,47 +1014,75 @@ public class kMeans
         nearestClass=j;
       }
     }
-    // classify x into class its nearest class
-    w[nearestClass].add(x);
+    return nearestClass;
   }
 
   /**
-   * Recompute mu[j] as the average of all points classified to the class w[j]
+   * Recompute mu[j] as the average of all points classified to class j, from the sum of its points
   **/
   private void computeMeans()
   {
-    int numInstances;               // number of instances in each class w[j]
-    PointND instance;
-
-    // init the means to zero
+    int offset;
     for (int j=0;j<k;j++)
+    {
       mu[j].setToOrigin();
+      if (count[j]>0)
+      {
+        offset=j*d;
+        for (int c=0;c<d;c++)
+          mu[j].setCoordinate(c,sum[offset+c]*(1.0/count[j]));
+      }
+    }
+    reseedEmptyClasses();
+  }
 
-    // recompute the means of each cluster
+  /**
+   * Move the mean of each empty class to the point farthest from the mean of its class,
+   * that point being the worst represented by the current means
+  **/
+  private void reseedEmptyClasses()
+  {
+    boolean[] chosen=null;                // points already taken by an empty class
+    PointND buffer=new PointND(d);
+    double dist, largest;
+    int farthest;
     for (int j=0;j<k;j++)
     {
-      numInstances=w[j].size();
-      for (int i=0;i<numInstances;i++)
+      if (count[j]>0)
+        continue;
+      if (chosen==null)
+        chosen=new boolean[n];
+      farthest=-1;
+      largest=-1;
+      for (int i=0;i<n;i++)
       {
-        instance=(PointND) (w[j].get(i));
-        mu[j].add(instance);
+        dist=getPoint(i,buffer).dist(mu[assignment[i]]);
+        if (dist>largest && !chosen[i])
+        {
+          largest=dist;
+          farthest=i;
+        }
       }
-      mu[j].multiply(1.0/numInstances);
+      if (farthest<0)
+        return;
+      chosen[farthest]=true;
+      mu[j]=new PointND(getPoint(farthest,buffer));
     }
   }
 
   /**
    * Compute the maximum change over each mean mu[j]
+   * (in absolute value, a mean moving towards negative coordinates or reseeded also counts)
   **/
   private double maxDeltaMeans(PointND[] oldMeans)
   {
     double delta;
     oldMeans[0].subtract(mu[0]);
-    double maxDelta=oldMeans[0].max();
+    double maxDelta=oldMeans[0].maxAbs();
     for (int j=1;j<k;j++)
     {
       oldMeans[j].subtract(mu[j]);
-      delta=oldMeans[j].max();
+      delta=oldMeans[j].maxAbs();
       if (delta > maxDelta)
         maxDelta=delta;
     }
@@ -188,6 +1098,8 @@ public class kMeans
     System.out.println("********************************************");
     System.out.println("Trying " + k + " clusters...");
     System.out.println("Converged after " + numIterations + " iterations");
+    if (numEMIterations>0)
+      System.out.println("Refined by EM in " + numEMIterations + " iterations");
     for (int j=0;j<k;j++)
     {
       System.out.println();
@@ -222,15 +1134,26 @@ public class kMeans
       out.write(mu[j] + " ");
     }
     out.write("\r");
+    // list the points of each Gaussian in the order of the points
+    int[] numInstances=new int[k];
+    for (int i=0;i<n;i++)
+      numInstances[assignment[i]]++;
+    int[][] members=new int[k][];
+    for (int j=0;j<k;j++)
+    {
+      members[j]=new int[numInstances[j]];
+      numInstances[j]=0;
+    }
+    for (int i=0;i<n;i++)
+      members[assignment[i]][numInstances[assignment[i]]++]=i;
     // save the points in each Gaussian for each column
-    int numInstances=0;
+    PointND buffer=new PointND(d);
     for (int i=0;i<n;i++)
     {
       for (int j=0;j<k;j++)
       {
-        numInstances=w[j].size();
-        if (i<numInstances)
-          out.write(w[j].get(i) + " ");
+        if (i<numInstances[j])
+          out.write(getPoint(members[j][i],buffer) + " ");
         else
           out.write("" + " " + "" + " ");
       }
@@ -239,33 +1162,54 @@ public class kMeans
   }
 
   /**
-   * Compute the standard deviation of the k Gaussians
+   * Compute the standard deviation of the k Gaussians from the count, sum and sum of squares
+   * of each class: sum i (x[i]-mu[j])^2 / n[j] = sumSq/n[j] - 2 mu[j] sum/n[j] + mu[j]^2
   **/
   private void computeDeviation()
   {
-    int numInstances;               // number of instances in each class w[j]
-    PointND instance;
-    PointND temp;
-
-    // set the standard deviation to zero
+    double mean, variance;
+    double[] floor=varianceFloor();
+    int offset;
     for (int j=0;j<k;j++)
+    {
       sigma[j].setToOrigin();
+      if (count[j]==0)
+        continue;
+      offset=j*d;
+      for (int c=0;c<d;c++)
+      {
+        mean=mu[j].getCoordinate(c);
+        variance=sumSq[offset+c]/count[j] - 2*mean*sum[offset+c]/count[j] + mean*mean;
+        // a class on a single point would have a zero variance and an infinite density
+        sigma[j].setCoordinate(c,Math.sqrt(Math.max(variance,floor[c])));
+      }
+    }
+  }
 
-    // for each cluster j...
-    for (int j=0;j<k;j++)
+  /**
+   * Return the smallest variance of a class for each coordinate:
+   * VARIANCEFLOOR times the variance of all the points
+  **/
+  private double[] varianceFloor()
+  {
+    double[] floor=new double[d];
+    double total, totalSq, mean;
+    for (int c=0;c<d;c++)
     {
-      numInstances=w[j].size();
-      for (int i=0;i<numInstances;i++)
+      total=0;
+      totalSq=0;
+      for (int j=0;j<k;j++)
       {
-        instance=(PointND) (w[j].get(i));
-        temp=new PointND(instance);
-        temp.subtract(mu[j]);
-        temp.pow(2.0);                        // (x[i]-mu[j])^2
-        temp.multiply(1.0/numInstances);      // multiply by proba of having x[i] in cluster j
-        sigma[j].add(temp);                   // sum i (x[i]-mu[j])^2 * p(x[i])
+        total=total + sum[j*d+c];
+        totalSq=totalSq + sumSq[j*d+c];
       }
-      sigma[j].pow(1.0/2);                    // because we want the standard deviation
+      mean=total/totalWeight;
+      floor[c]=VARIANCEFLOOR*(totalSq/totalWeight - mean*mean);
+      // all the points are equal on this coordinate
+      if (!(floor[c]>0))
+        floor[c]=Double.MIN_NORMAL;
     }
+    return floor;
   }
 
   /**
@@ -273,35 +1217,215 @@ public class kMeans
   **/
   private void computePriors()
   {
-    double numInstances;               // number of instances in each class w[j]
     for (int j=0;j<k;j++)
-    {
-      numInstances=w[j].size()*(1.0);
-      prior[j]=numInstances/n;
-    }
+      prior[j]=count[j]/totalWeight;
   }
 
   /**
    * Assume the standard deviations and priors of each cluster have been computed
+   * Each point counts as many times as its weight
   **/
-  private void computeLogLikelihood(PointND[] x)
+  private void computeLogLikelihood()
   {
-    double temp1=0;
-    double temp2=0;
-    PointND variance;
-    double ln2=Math.log(2);
-    // for each instance x
-    for (int i=0;i<n;i++)
+    logLikelihood=eStep(false).logLikelihood/Math.log(2);
+  }
+
+  /**
+   * Refine the model by EM on the mixture of Gaussians with diagonal covariances, starting
+   * from the k-means solution. Each point belongs to every class with the probability of
+   * the class given the point (E-step) and the priors, means and standard deviations
+   * are recomputed from these soft classes (M-step).
+   * Stops after maxIterations or once the log likelihood gains less than tolerance
+   * times its absolute value. The points are left in their most likely class.
+   * Assumes the algorithm was run
+  **/
+  public void refineEM(int maxIterations,double tolerance)
+  {
+    EStepTask task;
+    double current;
+    double previous=Double.NEGATIVE_INFINITY;
+    int offset;
+    numEMIterations=0;
+    while (numEMIterations<maxIterations)
     {
-      // for each cluster j
-      temp1=0;
+      task=eStep(true);
+      current=task.logLikelihood;
+      count=task.counts;
+      sum=task.sums;
+      sumSq=task.sumSqs;
+      numEMIterations++;
+      // a class no point belongs to keeps its mean, with a prior of zero
       for (int j=0;j<k;j++)
       {
-        temp1=temp1 + ( x[i].normal(mu[j],sigma[j]) *  prior[j] );
+        if (count[j]>0)
+        {
+          offset=j*d;
+          for (int c=0;c<d;c++)
+            mu[j].setCoordinate(c,sum[offset+c]/count[j]);
+        }
+      }
+      computeDeviation();
+      computePriors();
+      if (current-previous <= tolerance*Math.abs(current))
+        break;
+      previous=current;
+    }
+    computeLogLikelihood();
+    computeMDL();
+  }
+
+  /**
+   * Compute the log likelihood (base e) of the points on many threads, and if soft
+   * the probability of each class given each point summed into the statistics of the classes
+   * The log density of each class is its log prior plus a constant minus a weighted
+   * squared distance, kept in flat arrays, and the log of the sum of the densities is
+   * taken from the largest one (log-sum-exp) so that it never underflows.
+  **/
+  private EStepTask eStep(boolean soft)
+  {
+    double[] means=new double[k*d];
+    double[] invVariance=new double[k*d];
+    double[] logConstant=new double[k];   // log prior minus the log of the normalization
+    double halfLog2Pi=Math.log(2*Math.PI)/2;
+    double deviation;
+    for (int j=0;j<k;j++)
+    {
+      // classes without points are left out
+      if (prior[j]<=0)
+      {
+        logConstant[j]=Double.NEGATIVE_INFINITY;
+        continue;
+      }
+      logConstant[j]=Math.log(prior[j]);
+      for (int c=0;c<d;c++)
+      {
+        deviation=sigma[j].getCoordinate(c);
+        means[j*d+c]=mu[j].getCoordinate(c);
+        invVariance[j*d+c]=1/(deviation*deviation);
+        logConstant[j]=logConstant[j] - Math.log(deviation) - halfLog2Pi;
+      }
+    }
+    EStepTask task=new EStepTask(means,invVariance,logConstant,soft,0,n);
+    getPool().invoke(task);
+    return task;
+  }
+
+  /**
+   * Fork/join task of the E-step on the points from start to end (excluded)
+   * The results of two halves are added in the same order whatever the number of threads.
+  **/
+  private class EStepTask extends RecursiveAction
+  {
+    private double[] means;
+    private double[] invVariance;
+    private double[] logConstant;
+    private boolean soft;
+    private int start;
+    private int end;
+    double logLikelihood;                 // weighted log likelihood of the points
+    double[] counts;                      // if soft, summed probability of each class
+    double[] sums;                        // if soft, points summed by the probability of each class
+    double[] sumSqs;                      // if soft, squared coordinates summed the same way
+
+    EStepTask(double[] means,double[] invVariance,double[] logConstant,boolean soft,int start,int end)
+    {
+      this.means=means;
+      this.invVariance=invVariance;
+      this.logConstant=logConstant;
+      this.soft=soft;
+      this.start=start;
+      this.end=end;
+    }
+
+    protected void compute()
+    {
+      if (end-start > BLOCKSIZE)
+      {
+        // split on a multiple of BLOCKSIZE
+        int middle=start + ((end-start)/BLOCKSIZE/2)*BLOCKSIZE;
+        if (middle==start)
+          middle=start+BLOCKSIZE;
+        EStepTask left=new EStepTask(means,invVariance,logConstant,soft,start,middle);
+        EStepTask right=new EStepTask(means,invVariance,logConstant,soft,middle,end);
+        invokeAll(left,right);
+        logLikelihood=left.logLikelihood + right.logLikelihood;
+        if (soft)
+        {
+          counts=left.counts;
+          sums=left.sums;
+          sumSqs=left.sumSqs;
+          for (int c=0;c<sums.length;c++)
+          {
+            sums[c]=sums[c]+right.sums[c];
+            sumSqs[c]=sumSqs[c]+right.sumSqs[c];
+          }
+          for (int j=0;j<k;j++)
+            counts[j]=counts[j]+right.counts[j];
+        }
+        return;
+      }
+      if (soft)
+      {
+        counts=new double[k];
+        sums=new double[k*d];
+        sumSqs=new double[k*d];
+      }
+      double[] buffer=new double[d];
+      double[] logDensity=new double[k];
+      double[] point;
+      double diff, largest, total, logSum, r, w;
+      int offset, likeliest;
+      for (int i=start;i<end;i++)
+      {
+        if (x==null)
+          point=file.read(i,buffer);
+        else
+          point=x[i].getCoordinates();
+        // log of the prior times the density of each class
+        largest=Double.NEGATIVE_INFINITY;
+        likeliest=0;
+        for (int j=0;j<k;j++)
+        {
+          logDensity[j]=logConstant[j];
+          if (logDensity[j]==Double.NEGATIVE_INFINITY)
+            continue;
+          offset=j*d;
+          for (int c=0;c<d;c++)
+          {
+            diff=point[c]-means[offset+c];
+            logDensity[j]=logDensity[j] - diff*diff*invVariance[offset+c]/2;
+          }
+          if (logDensity[j]>largest)
+          {
+            largest=logDensity[j];
+            likeliest=j;
+          }
+        }
+        total=0;
+        for (int j=0;j<k;j++)
+          total=total + Math.exp(logDensity[j]-largest);
+        logSum=largest + Math.log(total);
+        w=weightOf(i);
+        logLikelihood=logLikelihood + w*logSum;
+        if (!soft)
+          continue;
+        // probability of each class given the point, times its weight
+        assignment[i]=likeliest;
+        for (int j=0;j<k;j++)
+        {
+          r=w*Math.exp(logDensity[j]-logSum);
+          if (r==0)
+            continue;
+          counts[j]=counts[j]+r;
+          offset=j*d;
+          for (int c=0;c<d;c++)
+          {
+            sums[offset+c]=sums[offset+c]+r*point[c];
+            sumSqs[offset+c]=sumSqs[offset+c]+r*point[c]*point[c];
+          }
+        }
       }
-      temp2=temp2 + Math.log(temp1)/ln2;
     }
-    logLikelihood=temp2;
   }
 
   /**
@@ -314,7 +1438,10 @@ public class kMeans
     double ln2=Math.log(2);
     for (int j=0;j<k;j++)
     {
-      numInstances=w[j].size();
+      numInstances=count[j];
+      // a class without points is not part of the model
+      if (numInstances==0)
+        continue;
       for (int i=0;i<d;i++)
       {
         temp=temp - Math.log( sigma[j].getCoordinate(i)/Math.sqrt(numInstances) )/ln2;
@@ -328,39 +1455,112 @@ public class kMeans
     return MDL;
   }
 
+  public int getK()
+  {
+    return k;
+  }
+
+  /**
+   * Return the class of each point (the array of the model, not a copy)
+  **/
+  public int[] getAssignment()
+  {
+    return assignment;
+  }
+
+  /**
+   * Return a copy of the means
+  **/
+  public PointND[] getMeans()
+  {
+    PointND[] means=new PointND[k];
+    for (int j=0;j<k;j++)
+      means[j]=new PointND(mu[j]);
+    return means;
+  }
+
+  /**
+   * Return k+1 initial means to warm start a run with one more cluster:
+   * the class with the largest squared error is split in two means, one standard deviation
+   * on each side of its mean, the other means are kept
+   * Assumes the algorithm was run
+  **/
+  public PointND[] splitWorstCluster()
+  {
+    int worst=0;
+    double error;
+    double largest=-1;
+    for (int j=0;j<k;j++)
+    {
+      error=0;
+      for (int i=0;i<d;i++)
+        error=error + sigma[j].getCoordinate(i)*sigma[j].getCoordinate(i);
+      error=error*count[j];
+      if (error>largest)
+      {
+        largest=error;
+        worst=j;
+      }
+    }
+    PointND[] means=new PointND[k+1];
+    for (int j=0;j<k;j++)
+      means[j]=new PointND(mu[j]);
+    means[k]=new PointND(mu[worst]);
+    means[worst].subtract(sigma[worst]);
+    means[k].add(sigma[worst]);
+    return means;
+  }
+
+  /**
+   * Read the instances of a data file (see DataSet) as points
+  **/
+  static PointND[] readPoints(String filename)
+  {
+    DataSet dataFile = new DataSet(filename);
+    int numInstances=dataFile.size();
+    int d=dataFile.getAttributeNum();
+    PointND[] x=new PointND[numInstances];
+    Example instance;
+    for (int i=0;i<numInstances;i++)
+    {
+      instance=dataFile.getExample(i);
+      x[i]=new PointND(d);
+      for (int k=0;k<d;k++)
+      {
+        x[i].setCoordinate(k,instance.getAttribute(k));
+      }
+    }
+    return x;
+  }
+
   /**
    * Takes the data filename of instances to classify into a number of cluster k
    * Runs the k-means algorithm with 1 to maxk clusters
   **/
   public static void main(String[] args) throws IOException
   {
-    if (args.length!=2)
+    if (args.length!=2 && args.length!=3)
     {
-      System.out.println("Wrong usage. Type java kMeans [data file] [maximum number of clusters]");
+      System.out.println("Wrong usage. Type java kMeans [data file] [maximum number of clusters] [batch size]");
       System.out.println("Make sure the data file contains the number of instances and the number of attributes");
+      System.out.println("With a batch size the data file is read by batches (mini-batch k-means)");
+      System.out.println("A binary data file (" + PointFile.EXTENSION + ", see PointFile) is mapped in memory instead");
     }
     else
     {
       // read in the arguments
       // the data file must have as its first line the number of instances and for
       // each instance the number of attributes (see data.txt)
-      DataSet dataFile = new DataSet(args[0]);
       int maxk = Integer.parseInt(args[1]);
+      int batchSize=0;
+      if (args.length==3)
+        batchSize=Integer.parseInt(args[2]);
 
-      // make the instance array
-      int numInstances=dataFile.size();
-      int d=dataFile.getAttributeNum();
-      PointND[] x=new PointND[numInstances];
-      Example instance;
-      for (int i=0;i<numInstances;i++)
-      {
-        instance=dataFile.getExample(i);
-        x[i]=new PointND(d);
-        for (int k=0;k<d;k++)
-        {
-          x[i].setCoordinate(k,instance.getAttribute(k));
-        }
-      }
+      // make the instance array (unless the file is read by batches or mapped)
+      boolean binary=args[0].endsWith(PointFile.EXTENSION);
+      PointND[] x=null;
+      if (batchSize==0 && !binary)
+        x=readPoints(args[0]);
 
       // used to write into files
       File outputFile=new File("testClustering.txt");
@@ -370,26 +1570,61 @@ public class kMeans
       double epsilon=0.01;                    // make it data driven (right now absolute..)
 
       // run the k-means algorithm on this datafile with a max number of clusters as maxk
-      kMeans algorithm=new kMeans();
-      // Try with k clusters....till maxk clusters
-      int bestModel=1;
-      double bestMDL=1000000000;              // change this
-      for (int k=1;k<=maxk;k++)
-      {
-        algorithm.run(x,k,epsilon);
-        algorithm.printResults();
-        if (algorithm.getMDL() < bestMDL)
+      // Try with k clusters....till maxk clusters, keeping the model of lowest MDL
+      kMeans algorithm=null;
+      if (binary)
+      {
+        PointFile file=new PointFile(args[0]);
+        kMeans model;
+        for (int k=1;k<=maxk;k++)
+        {
+          model=new kMeans();
+          model.run(file,k,epsilon);
+          model.refineEM(EMITERATIONS,EMTOLERANCE);
+          model.printResults();
+          if (algorithm==null || model.getMDL() < algorithm.getMDL())
+            algorithm=model;
+        }
+      }
+      else if (batchSize>0)
+      {
+        kMeans model;
+        for (int k=1;k<=maxk;k++)
         {
-          bestModel=k;
-          bestMDL=algorithm.getMDL();
+          model=new kMeans();
+          model.runMiniBatch(args[0],k,batchSize,MAXPASSES,epsilon,SAMPLESIZE);
+          model.printResults();
+          if (algorithm==null || model.getMDL() < algorithm.getMDL())
+            algorithm=model;
         }
       }
+      else
+      {
+        // several restarts and values of k at the same time, each run with Hamerly's bounds
+        // then refined by EM
+        ModelSelector selector=new ModelSelector(ModelSelector.RESTARTS,ModelSelector.PATIENCE,true,
+                                                 HAMERLY,Runtime.getRuntime().availableProcessors());
+        selector.setRefinement(EMITERATIONS);
+        if (x.length > 10*CORESETSIZE)
+        {
+          // choose k on a coreset, then run the chosen model on every point from its means
+          Coreset coreset=new Coreset(x,maxk,CORESETSIZE);
+          System.out.println("Choosing the number of clusters on a coreset of " + coreset.size() + " points");
+          algorithm=selector.select(coreset.getPoints(),coreset.getWeights(),maxk,epsilon);
+          PointND[] means=algorithm.getMeans();
+          algorithm=new kMeans();
+          algorithm.run(x,means,epsilon,HAMERLY);
+          algorithm.refineEM(EMITERATIONS,EMTOLERANCE);
+          algorithm.printResults();
+        }
+        else
+          algorithm=selector.select(x,maxk,epsilon);
+      }
       // Report the best model
       System.out.println("********************************************");
-      System.out.println("The most likely model is " + bestModel + " Gaussians");
+      System.out.println("The most likely model is " + algorithm.getK() + " Gaussians");
 
       // write into file testClustering.txt the most likely model
-      algorithm.run(x,bestModel,epsilon);
       algorithm.writeFile(out);
       out.close();
     }
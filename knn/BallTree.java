@@ -0,0 +1,201 @@
+/**
+ * Ball tree over the scaled points of a train set.
+ * Each node holds the center and radius of a ball containing its points.
+ * Inner nodes split their points at the median of their projection on the
+ * axis joining two far apart points, leaves hold at most LEAFSIZE points.
+ * A ball is only visited if it may contain a point closer than the current k-th neighbor,
+ * which still prunes well in high dimension where the planes of a KD-tree do not.
+**/
+public class BallTree implements NeighborIndex
+{
+
+  final static int LEAFSIZE = 16;   // maximum number of points in a leaf
+
+  private double[][] points;        // the scaled points of the train set
+  private double[] keys;            // projections used while building the tree
+  private Node root;                // root of the tree
+
+  /**
+   * Build the tree on the scaled points
+  **/
+  public BallTree(double[][] points)
+  {
+    this.points = points;
+    this.keys = new double[points.length];
+    int[] positions = new int[points.length];
+    for (int i=0; i < positions.length; i++)
+      positions[i] = i;
+    if (points.length > 0)
+      root = build(positions, 0, positions.length);
+    keys = null;
+  }
+
+  /**
+   * Recursively build the subtree holding positions[start..end[
+  **/
+  private Node build(int[] positions, int start, int end)
+  {
+    Node node = new Node();
+    int dimension = points[0].length;
+
+    // the center is the mean of the points and the radius the largest distance to it
+    node.center = new double[dimension];
+    for (int i=start; i < end; i++)
+      for (int dim=0; dim < dimension; dim++)
+        node.center[dim] = node.center[dim] + points[positions[i]][dim];
+    for (int dim=0; dim < dimension; dim++)
+      node.center[dim] = node.center[dim] / (end - start);
+    int farthest = farthest(positions, start, end, node.center);
+    node.radius = Math.sqrt(BruteForceIndex.squaredDist(points[farthest], node.center));
+
+    if (end - start <= LEAFSIZE)
+    {
+      node.bucket = new int[end - start];
+      System.arraycopy(positions, start, node.bucket, 0, end - start);
+      return node;
+    }
+
+    // project each point on the axis from the farthest point a to the point b farthest from a
+    double[] a = points[farthest];
+    double[] b = points[farthest(positions, start, end, a)];
+    double projection;
+    for (int i=start; i < end; i++)
+    {
+      projection = 0;
+      for (int dim=0; dim < dimension; dim++)
+        projection = projection + (points[positions[i]][dim] - a[dim]) * (b[dim] - a[dim]);
+      keys[positions[i]] = projection;
+    }
+    int middle = (start + end) / 2;
+    select(positions, start, end, middle);
+    node.left = build(positions, start, middle);
+    node.right = build(positions, middle, end);
+    return node;
+  }
+
+  public void search(double[] query, int exclude, NeighborHeap heap)
+  {
+    if (root != null)
+      search(root, lowerBound(root, query), query, exclude, heap);
+  }
+
+  public int size()
+  {
+    return points.length;
+  }
+
+  /**
+   * Search a ball whose points are at a squared distance of at least bound from the query.
+   * The child ball with the nearer lower bound is searched first.
+  **/
+  private void search(Node node, double bound, double[] query, int exclude, NeighborHeap heap)
+  {
+    if (bound > heap.worstDistance())
+      return;
+    if (node.bucket != null)
+    {
+      int position;
+      for (int i=0; i < node.bucket.length; i++)
+      {
+        position = node.bucket[i];
+        if (position != exclude)
+          heap.insert(position, kNNExample.boundedSquaredDist(points[position], query, heap.worstDistance()));
+      }
+      return;
+    }
+    double leftBound = lowerBound(node.left, query);
+    double rightBound = lowerBound(node.right, query);
+    if (leftBound <= rightBound)
+    {
+      search(node.left, leftBound, query, exclude, heap);
+      search(node.right, rightBound, query, exclude, heap);
+    }
+    else
+    {
+      search(node.right, rightBound, query, exclude, heap);
+      search(node.left, leftBound, query, exclude, heap);
+    }
+  }
+
+  /**
+   * Return a lower bound on the squared distance from the query to any point of the ball
+  **/
+  private double lowerBound(Node node, double[] query)
+  {
+    double dist = Math.sqrt(BruteForceIndex.squaredDist(node.center, query)) - node.radius;
+    if (dist <= 0)
+      return 0;
+    return dist * dist;
+  }
+
+  /**
+   * Return the point of positions[start..end[ farthest from target
+  **/
+  private int farthest(int[] positions, int start, int end, double[] target)
+  {
+    int farthest = positions[start];
+    double largest = -1;
+    double dist;
+    for (int i=start; i < end; i++)
+    {
+      dist = BruteForceIndex.squaredDist(points[positions[i]], target);
+      if (dist > largest)
+      {
+        largest = dist;
+        farthest = positions[i];
+      }
+    }
+    return farthest;
+  }
+
+  /**
+   * Reorder positions[start..end[ so that positions[nth] is the point which would be there
+   * if sorted by key, with no larger key before it and no smaller key after it
+  **/
+  private void select(int[] positions, int start, int end, int nth)
+  {
+    int left = start;
+    int right = end - 1;
+    int i, j, swap;
+    double pivot;
+    while (right > left)
+    {
+      pivot = keys[positions[(left + right) >>> 1]];
+      i = left;
+      j = right;
+      while (i <= j)
+      {
+        while (keys[positions[i]] < pivot)
+          i++;
+        while (keys[positions[j]] > pivot)
+          j--;
+        if (i <= j)
+        {
+          swap = positions[i];
+          positions[i] = positions[j];
+          positions[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (nth <= j)
+        right = j;
+      else if (nth >= i)
+        left = i;
+      else
+        break;
+    }
+  }
+
+  /**
+   * A ball of the tree, either a leaf (bucket is set) or an inner node
+  **/
+  private static class Node
+  {
+    double[] center;  // center of the ball
+    double radius;    // radius of the ball
+    Node left;        // first half of the points
+    Node right;       // second half of the points
+    int[] bucket;     // positions of the points in a leaf
+  }
+}
@@ -0,0 +1,234 @@
+import java.util.concurrent.*;
+
+/**
+ * Finds the nearest neighbors of many queries at once.
+ * The scaled training points are kept in one flat row-major array, centered on their mean.
+ * Squared distances are computed as ||q||^2 + ||t||^2 - 2 q.t for a block of QUERYBLOCK
+ * queries against a block of TRAINBLOCK training rows at a time, so the training block stays
+ * in cache while every query of the block is scored against it.
+ * Blocks of queries are scored in parallel.
+ * The distances of the neighbors kept are recomputed exactly at the end.
+**/
+public class BatchScorer
+{
+
+  final static int QUERYBLOCK = 32;   // number of queries scored together
+  final static int TRAINBLOCK = 128;  // number of training rows visited together
+
+  private double[][] points;          // the scaled points of the train set
+  private int size;                   // number of training rows
+  private int dimension;              // number of attributes of a row
+  private double[] mean;              // mean of the training rows
+  private double[] rows;              // centered training rows, one after the other
+  private double[] norms;             // squared norms of the centered rows
+
+  /**
+   * Flatten and center the scaled training points
+  **/
+  public BatchScorer(double[][] points)
+  {
+    this.points = points;
+    this.size = points.length;
+    this.dimension = points[0].length;
+    mean = new double[dimension];
+    for (int i=0; i < size; i++)
+      for (int j=0; j < dimension; j++)
+        mean[j] = mean[j] + points[i][j];
+    for (int j=0; j < dimension; j++)
+      mean[j] = mean[j] / size;
+    rows = new double[size * dimension];
+    norms = new double[size];
+    double value;
+    for (int i=0; i < size; i++)
+    {
+      for (int j=0; j < dimension; j++)
+      {
+        value = points[i][j] - mean[j];
+        rows[i * dimension + j] = value;
+        norms[i] = norms[i] + value * value;
+      }
+    }
+  }
+
+  /**
+   * Find the numNeighbors nearest training rows of each scaled query with the threads of pool.
+   * The neighbors of query q are written from nearest to farthest in
+   * positions[q*numNeighbors..] and their distances in distances[q*numNeighbors..].
+  **/
+  public void search(double[][] queries, int numNeighbors, ForkJoinPool pool, int[] positions, double[] distances)
+  {
+    pool.invoke(new SearchTask(queries, numNeighbors, positions, distances, 0, queries.length));
+  }
+
+  /**
+   * Score the queries of a single block against every block of training rows
+  **/
+  private void searchBlock(double[][] queries, int numNeighbors, int[] positions, double[] distances, int start, int end)
+  {
+    int numQueries = end - start;
+    double[] block = new double[numQueries * dimension];
+    double[] blockNorms = new double[numQueries];
+    NeighborHeap[] heaps = new NeighborHeap[numQueries];
+    int q, t;
+    double value;
+
+    // center the queries
+    for (q=0; q < numQueries; q++)
+    {
+      for (int j=0; j < dimension; j++)
+      {
+        value = queries[start + q][j] - mean[j];
+        block[q * dimension + j] = value;
+        blockNorms[q] = blockNorms[q] + value * value;
+      }
+      heaps[q] = new NeighborHeap(numNeighbors);
+    }
+
+    // distances of the query block to each block of training rows
+    int trainEnd;
+    for (int trainStart=0; trainStart < size; trainStart += TRAINBLOCK)
+    {
+      trainEnd = Math.min(trainStart + TRAINBLOCK, size);
+      // two queries at a time against four rows at a time,
+      // so that each value loaded is used in several products
+      for (q=0; q + 2 <= numQueries; q += 2)
+      {
+        for (t=trainStart; t + 4 <= trainEnd; t += 4)
+          scoreTwoByFour(block, blockNorms, heaps, q, t);
+        for (; t < trainEnd; t++)
+        {
+          offer(heaps[q], t, blockNorms[q] + norms[t] - 2 * dot(block, q, t));
+          offer(heaps[q+1], t, blockNorms[q+1] + norms[t] - 2 * dot(block, q+1, t));
+        }
+      }
+      for (; q < numQueries; q++)
+        for (t=trainStart; t < trainEnd; t++)
+          offer(heaps[q], t, blockNorms[q] + norms[t] - 2 * dot(block, q, t));
+    }
+
+    // recompute the distances of the neighbors kept exactly and sort them
+    int offset, position, i;
+    double dist;
+    for (q=0; q < numQueries; q++)
+    {
+      offset = (start + q) * numNeighbors;
+      for (int n=0; n < heaps[q].size(); n++)
+      {
+        position = heaps[q].getPosition(n);
+        dist = Math.sqrt(BruteForceIndex.squaredDist(points[position], queries[start + q]));
+        // insertion sort on (distance, position)
+        for (i=n; i > 0 && (distances[offset+i-1] > dist
+                            || (distances[offset+i-1] == dist && positions[offset+i-1] > position)); i--)
+        {
+          distances[offset + i] = distances[offset + i - 1];
+          positions[offset + i] = positions[offset + i - 1];
+        }
+        distances[offset + i] = dist;
+        positions[offset + i] = position;
+      }
+    }
+  }
+
+  /**
+   * Score queries q and q+1 of the block against training rows t to t+3
+  **/
+  private void scoreTwoByFour(double[] block, double[] blockNorms, NeighborHeap[] heaps, int q, int t)
+  {
+    int query0 = q * dimension;
+    int query1 = query0 + dimension;
+    int row0 = t * dimension;
+    int row1 = row0 + dimension;
+    int row2 = row1 + dimension;
+    int row3 = row2 + dimension;
+    double dot00 = 0, dot01 = 0, dot02 = 0, dot03 = 0;
+    double dot10 = 0, dot11 = 0, dot12 = 0, dot13 = 0;
+    double value0, value1, row;
+    for (int j=0; j < dimension; j++)
+    {
+      value0 = block[query0 + j];
+      value1 = block[query1 + j];
+      row = rows[row0 + j];
+      dot00 = dot00 + value0 * row;
+      dot10 = dot10 + value1 * row;
+      row = rows[row1 + j];
+      dot01 = dot01 + value0 * row;
+      dot11 = dot11 + value1 * row;
+      row = rows[row2 + j];
+      dot02 = dot02 + value0 * row;
+      dot12 = dot12 + value1 * row;
+      row = rows[row3 + j];
+      dot03 = dot03 + value0 * row;
+      dot13 = dot13 + value1 * row;
+    }
+    offer(heaps[q], t, blockNorms[q] + norms[t] - 2 * dot00);
+    offer(heaps[q], t + 1, blockNorms[q] + norms[t + 1] - 2 * dot01);
+    offer(heaps[q], t + 2, blockNorms[q] + norms[t + 2] - 2 * dot02);
+    offer(heaps[q], t + 3, blockNorms[q] + norms[t + 3] - 2 * dot03);
+    offer(heaps[q+1], t, blockNorms[q+1] + norms[t] - 2 * dot10);
+    offer(heaps[q+1], t + 1, blockNorms[q+1] + norms[t + 1] - 2 * dot11);
+    offer(heaps[q+1], t + 2, blockNorms[q+1] + norms[t + 2] - 2 * dot12);
+    offer(heaps[q+1], t + 3, blockNorms[q+1] + norms[t + 3] - 2 * dot13);
+  }
+
+  /**
+   * Return the dot product of query q of the block with training row t
+  **/
+  private double dot(double[] block, int q, int t)
+  {
+    double dot = 0;
+    int queryOffset = q * dimension;
+    int rowOffset = t * dimension;
+    for (int j=0; j < dimension; j++)
+      dot = dot + block[queryOffset + j] * rows[rowOffset + j];
+    return dot;
+  }
+
+  /**
+   * Offer a training row to the heap, rounding errors may make its squared distance negative
+  **/
+  private static void offer(NeighborHeap heap, int position, double dist)
+  {
+    if (dist < 0)
+      dist = 0;
+    if (dist <= heap.worstDistance())
+      heap.insert(position, dist);
+  }
+
+  /**
+   * Fork/join task scoring the queries from start to end (excluded)
+  **/
+  private class SearchTask extends RecursiveAction
+  {
+    private double[][] queries;
+    private int numNeighbors;
+    private int[] positions;
+    private double[] distances;
+    private int start;
+    private int end;
+
+    SearchTask(double[][] queries, int numNeighbors, int[] positions, double[] distances, int start, int end)
+    {
+      this.queries = queries;
+      this.numNeighbors = numNeighbors;
+      this.positions = positions;
+      this.distances = distances;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected void compute()
+    {
+      if (end - start <= QUERYBLOCK)
+      {
+        searchBlock(queries, numNeighbors, positions, distances, start, end);
+        return;
+      }
+      // split on a multiple of QUERYBLOCK
+      int middle = start + ((end - start) / QUERYBLOCK / 2) * QUERYBLOCK;
+      if (middle == start)
+        middle = start + QUERYBLOCK;
+      invokeAll(new SearchTask(queries, numNeighbors, positions, distances, start, middle),
+                new SearchTask(queries, numNeighbors, positions, distances, middle, end));
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/**
+ * Neighbor index which simply compares the query to every point.
+ * Used as a reference and whenever the number of neighbors is close to the train set size.
+**/
+public class BruteForceIndex implements NeighborIndex
+{
+
+  private double[][] points;  // the scaled points of the train set
+
+  /**
+   * Build the index on the scaled points
+  **/
+  public BruteForceIndex(double[][] points)
+  {
+    this.points = points;
+  }
+
+  /**
+   * Compare the query to every point
+  **/
+  public void search(double[] query, int exclude, NeighborHeap heap)
+  {
+    for (int i=0; i < points.length; i++)
+    {
+      if (i != exclude)
+        heap.insert(i, kNNExample.boundedSquaredDist(points[i], query, heap.worstDistance()));
+    }
+  }
+
+  public int size()
+  {
+    return points.length;
+  }
+
+  /**
+   * Return the squared euclidian distance between two scaled points
+   * (over the attributes of point1, point2 may be a longer query buffer)
+  **/
+  static double squaredDist(double[] point1, double[] point2)
+  {
+    double sum = 0;
+    double diff;
+    for (int i=0; i < point1.length; i++)
+    {
+      diff = point1[i] - point2[i];
+      sum = sum + diff * diff;
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Neighbor index over a train set which changes after the index was built.
+ * A static index is kept on the points present when it was built. Points added later
+ * are kept in a buffer compared to every query, points removed are marked and skipped.
+ * Positions never change, a removed position is simply not reused.
+ * Once the buffer or the removed points grow too large (see needsRebuild) the owner should
+ * build a new index on the points left. The buffer holds about sqrt(n) points, so the
+ * rebuilds and the buffer scans cost about the same per operation.
+ * Updates must not run at the same time as searches.
+**/
+public class DynamicIndex implements NeighborIndex
+{
+
+  final static int MINBUFFER = 64;  // number of points always allowed in the buffer
+
+  private NeighborIndex base;       // static index on the first baseSize points
+  private int baseSize;             // number of points in the static index
+  private double[][] points;        // scaled points by position, added points included
+  private int size;                 // number of positions used
+  private boolean[] removed;        // whether the point at each position was removed
+  private int numRemoved;           // number of points removed
+
+  /**
+   * Wrap a static index built on the given scaled points
+  **/
+  public DynamicIndex(NeighborIndex base, double[][] points)
+  {
+    this.base = base;
+    this.baseSize = points.length;
+    this.size = points.length;
+    this.points = new double[Math.max(points.length, 1)][];
+    System.arraycopy(points, 0, this.points, 0, points.length);
+    this.removed = new boolean[this.points.length];
+  }
+
+  /**
+   * Add a scaled point and return its position
+  **/
+  public int add(double[] point)
+  {
+    if (size == points.length)
+    {
+      double[][] newPoints = new double[2 * size][];
+      System.arraycopy(points, 0, newPoints, 0, size);
+      points = newPoints;
+      boolean[] newRemoved = new boolean[2 * size];
+      System.arraycopy(removed, 0, newRemoved, 0, size);
+      removed = newRemoved;
+    }
+    points[size] = point;
+    return size++;
+  }
+
+  /**
+   * Remove the point at position
+  **/
+  public void remove(int position)
+  {
+    if (!removed[position])
+    {
+      removed[position] = true;
+      numRemoved++;
+    }
+  }
+
+  /**
+   * Return whether the point at position was removed
+  **/
+  public boolean isRemoved(int position)
+  {
+    return removed[position];
+  }
+
+  /**
+   * Search the static index without the removed points, then the buffer
+  **/
+  public void search(double[] query, int exclude, NeighborHeap heap)
+  {
+    if (numRemoved > 0)
+      heap.setRemoved(removed);
+    base.search(query, exclude, heap);
+    heap.setRemoved(null);
+    for (int i=baseSize; i < size; i++)
+    {
+      if (i != exclude && !removed[i])
+        heap.insert(i, kNNExample.boundedSquaredDist(points[i], query, heap.worstDistance()));
+    }
+  }
+
+  /**
+   * Return the number of points left
+  **/
+  public int size()
+  {
+    return size - numRemoved;
+  }
+
+  /**
+   * Return the number of positions used, removed points included
+  **/
+  public int numPositions()
+  {
+    return size;
+  }
+
+  /**
+   * Return whether points were added or removed since the static index was built
+  **/
+  public boolean isModified()
+  {
+    return size > baseSize || numRemoved > 0;
+  }
+
+  /**
+   * Return whether the buffer or the removed points make searches too slow
+  **/
+  public boolean needsRebuild()
+  {
+    return size - baseSize > MINBUFFER + 4 * Math.sqrt(baseSize) || numRemoved > size / 4;
+  }
+}
@@ -0,0 +1,328 @@
+import java.util.concurrent.*;
+
+/**
+ * Forward and backward feature selection for kNN with LOOCV as the criterion.
+ * The squared distances between every pair of training examples on the selected features
+ * are kept in an n x n matrix (as floats, one row per example). Adding or removing a feature
+ * only adds or subtracts its weighted squared differences, so a candidate is scored in O(n^2)
+ * whatever the number of features selected. Once a candidate is chosen, the rows are recomputed
+ * in double from the selected features, so that rounding errors do not build up from step to step.
+ * The contribution of a feature is computed on the fly from its scaled column, which costs
+ * as much as reading it from a cache of d n^2 values but fits in memory.
+ * Candidates are scored together on blocks of rows, with the blocks in parallel.
+ * A candidate is scored by the number of examples correctly classified by an unweighted
+ * k-NN on the other examples, ties broken on the squared error.
+**/
+public class FeatureSelector
+{
+
+  final static int BLOCKSIZE = 16;  // number of rows scored by a single task
+
+  private kNNExample[] examples;    // the training set
+  private int size;                 // number of examples
+  private int numAttributes;        // number of attributes
+  private double[][] columns;       // attributes scaled by the square root of their weight, by attribute
+  private float[][] distances;      // squared distances between examples on the selected features
+  private boolean[] selected;       // selected features
+  private int k;                    // number of neighbors of the criterion
+  private int parallelism;          // number of threads
+  private ForkJoinPool pool;        // threads of the search under way
+
+  /**
+   * Set up the selection on the training set with the given feature weights
+   * and number of neighbors
+  **/
+  public FeatureSelector(kNNExample[] examples, double[] featureWeights, int k, int parallelism)
+  {
+    this.examples = examples;
+    this.size = examples.length;
+    this.numAttributes = featureWeights.length;
+    this.k = Math.min(k, size - 1);
+    this.parallelism = parallelism;
+    columns = new double[numAttributes][size];
+    for (int f=0; f < numAttributes; f++)
+      for (int i=0; i < size; i++)
+        columns[f][i] = Math.sqrt(featureWeights[f]) * examples[i].getAttribute(f);
+    distances = new float[size][size];
+    selected = new boolean[numAttributes];
+  }
+
+  /**
+   * Forward selection: starting from no feature, add the feature improving the criterion
+   * most until none improves it. Returns the selected features.
+  **/
+  public boolean[] forward()
+  {
+    pool = new ForkJoinPool(parallelism);
+    try {
+      return search(true);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Backward selection: starting from every feature, remove the feature whose removal
+   * improves the criterion most, until every removal makes it worse. Returns the selected features.
+  **/
+  public boolean[] backward()
+  {
+    for (int f=0; f < numAttributes; f++)
+      selected[f] = true;
+    pool = new ForkJoinPool(parallelism);
+    try {
+      updateDistances();
+      return search(false);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Add (forward) or remove features one at a time while the criterion improves.
+   * Removing a feature which does not change the criterion is accepted, adding one is not.
+  **/
+  private boolean[] search(boolean forward)
+  {
+    int[] score = new int[1];
+    double[] error = new double[1];
+    score(new int[] {-1}, 0, score, error);
+    int bestScore = score[0];
+    double bestError = error[0];
+    System.out.println("No change , Accuracy =  " + 100.0 * bestScore / size + "% , RMSE =  " + Math.sqrt(bestError / size));
+
+    int[] candidates;
+    int numCandidates, best;
+    boolean better, same;
+    while (true)
+    {
+      // the features which may be added or removed
+      numCandidates = 0;
+      for (int f=0; f < numAttributes; f++)
+        if (selected[f] != forward)
+          numCandidates++;
+      if (numCandidates == 0)
+        break;
+      candidates = new int[numCandidates];
+      numCandidates = 0;
+      for (int f=0; f < numAttributes; f++)
+        if (selected[f] != forward)
+          candidates[numCandidates++] = f;
+      score = new int[numCandidates];
+      error = new double[numCandidates];
+      score(candidates, forward ? 1 : -1, score, error);
+
+      // pick the best candidate, the first one on ties
+      best = 0;
+      for (int c=1; c < numCandidates; c++)
+        if (score[c] > score[best] || (score[c] == score[best] && error[c] < error[best]))
+          best = c;
+      // adding must improve the criterion, removing must not make it worse
+      better = score[best] > bestScore || (score[best] == bestScore && error[best] < bestError);
+      same = score[best] == bestScore && error[best] == bestError;
+      if (!better && (forward || !same))
+        break;
+      bestScore = score[best];
+      bestError = error[best];
+      update(candidates[best], forward ? 1 : -1);
+      System.out.println((forward ? "Add" : "Remove") + " feature " + candidates[best]
+                         + " , Accuracy =  " + 100.0 * bestScore / size + "% , RMSE =  " + Math.sqrt(bestError / size));
+    }
+    return selected;
+  }
+
+  /**
+   * Add (sign 1) or remove (sign -1) a feature and recompute the distances
+  **/
+  private void update(int feature, int sign)
+  {
+    selected[feature] = sign > 0;
+    updateDistances();
+  }
+
+  /**
+   * Recompute the distances from the selected features, in parallel on blocks of rows
+  **/
+  private void updateDistances()
+  {
+    int numBlocks = (size + BLOCKSIZE - 1) / BLOCKSIZE;
+    if (numBlocks == 0)
+      return;
+    pool.invoke(new DistanceTask(0, numBlocks));
+  }
+
+  /**
+   * Recompute in double the rows of the distances of a block, rounded to floats once
+  **/
+  private void distanceBlock(int block)
+  {
+    double[] sum = new double[size];
+    double[] column;
+    double value, diff;
+    int end = Math.min((block+1) * BLOCKSIZE, size);
+    for (int i=block * BLOCKSIZE; i < end; i++)
+    {
+      for (int j=0; j < size; j++)
+        sum[j] = 0;
+      for (int f=0; f < numAttributes; f++)
+      {
+        if (!selected[f])
+          continue;
+        column = columns[f];
+        value = column[i];
+        for (int j=0; j < size; j++)
+        {
+          diff = value - column[j];
+          sum[j] = sum[j] + diff * diff;
+        }
+      }
+      for (int j=0; j < size; j++)
+        distances[i][j] = (float) sum[j];
+    }
+  }
+
+  /**
+   * Score the LOOCV criterion after adding (sign 1) or removing (sign -1) each candidate feature
+   * (-1 to score the selected features as they are).
+   * Writes the number of correctly classified examples in score and the squared error in error.
+  **/
+  private void score(int[] candidates, int sign, int[] score, double[] error)
+  {
+    int numBlocks = (size + BLOCKSIZE - 1) / BLOCKSIZE;
+    if (numBlocks == 0)
+      return;
+    int[][] blockScore = new int[numBlocks][];
+    double[][] blockError = new double[numBlocks][];
+    pool.invoke(new ScoreTask(candidates, sign, 0, numBlocks, blockScore, blockError));
+    // merge the blocks in order so that the result does not depend on the threads
+    for (int block=0; block < numBlocks; block++)
+    {
+      for (int c=0; c < candidates.length; c++)
+      {
+        score[c] = score[c] + blockScore[block][c];
+        error[c] = error[c] + blockError[block][c];
+      }
+    }
+  }
+
+  /**
+   * Score every candidate on the rows of a block
+  **/
+  private void scoreBlock(int[] candidates, int sign, int block, int[][] blockScore, double[][] blockError)
+  {
+    int[] score = new int[candidates.length];
+    double[] error = new double[candidates.length];
+    NeighborHeap heap = new NeighborHeap(k);
+    double[] column;
+    double value, diff, dist, sumLabel, probaLabel;
+    float[] row;
+    int label;
+    int end = Math.min((block+1) * BLOCKSIZE, size);
+    for (int i=block * BLOCKSIZE; i < end; i++)
+    {
+      label = examples[i].getClassLabel();
+      row = distances[i];
+      for (int c=0; c < candidates.length; c++)
+      {
+        // k nearest neighbors of example i with the candidate feature added or removed
+        heap.clear(k);
+        if (candidates[c] < 0)
+        {
+          for (int j=0; j < size; j++)
+            if (j != i && row[j] <= heap.worstDistance())
+              heap.insert(j, row[j]);
+        }
+        else
+        {
+          column = columns[candidates[c]];
+          value = column[i];
+          for (int j=0; j < size; j++)
+          {
+            diff = value - column[j];
+            // rounded to a float as the stored distances
+            dist = (float) (row[j] + sign * diff * diff);
+            if (dist < 0)
+              dist = 0;
+            if (j != i && dist <= heap.worstDistance())
+              heap.insert(j, dist);
+          }
+        }
+        // unweighted vote
+        sumLabel = 0;
+        for (int n=0; n < heap.size(); n++)
+          sumLabel = sumLabel + examples[heap.getPosition(n)].getClassLabel();
+        probaLabel = heap.size() == 0 ? 0.5 : sumLabel / heap.size();
+        if (Math.abs(label - probaLabel) <= 0.5)
+          score[c]++;
+        error[c] = error[c] + (label - probaLabel) * (label - probaLabel);
+      }
+    }
+    blockScore[block] = score;
+    blockError[block] = error;
+  }
+
+  /**
+   * Fork/join task scoring the blocks of rows from firstBlock to lastBlock (excluded)
+  **/
+  private class ScoreTask extends RecursiveAction
+  {
+    private int[] candidates;
+    private int sign;
+    private int firstBlock;
+    private int lastBlock;
+    private int[][] blockScore;
+    private double[][] blockError;
+
+    ScoreTask(int[] candidates, int sign, int firstBlock, int lastBlock, int[][] blockScore, double[][] blockError)
+    {
+      this.candidates = candidates;
+      this.sign = sign;
+      this.firstBlock = firstBlock;
+      this.lastBlock = lastBlock;
+      this.blockScore = blockScore;
+      this.blockError = blockError;
+    }
+
+    protected void compute()
+    {
+      if (lastBlock - firstBlock == 1)
+      {
+        scoreBlock(candidates, sign, firstBlock, blockScore, blockError);
+        return;
+      }
+      int middle = (firstBlock + lastBlock) / 2;
+      invokeAll(new ScoreTask(candidates, sign, firstBlock, middle, blockScore, blockError),
+                new ScoreTask(candidates, sign, middle, lastBlock, blockScore, blockError));
+    }
+  }
+
+  /**
+   * Fork/join task recomputing the distances of the blocks of rows from firstBlock to lastBlock (excluded)
+  **/
+  private class DistanceTask extends RecursiveAction
+  {
+    private int firstBlock;
+    private int lastBlock;
+
+    DistanceTask(int firstBlock, int lastBlock)
+    {
+      this.firstBlock = firstBlock;
+      this.lastBlock = lastBlock;
+    }
+
+    protected void compute()
+    {
+      if (lastBlock - firstBlock == 1)
+      {
+        distanceBlock(firstBlock);
+        return;
+      }
+      int middle = (firstBlock + lastBlock) / 2;
+      invokeAll(new DistanceTask(firstBlock, middle), new DistanceTask(middle, lastBlock));
+    }
+  }
+}
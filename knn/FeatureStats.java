@@ -0,0 +1,156 @@
+import ann.*;
+
+/**
+ * Running statistics of each attribute of a set of examples: minimum, maximum and variance.
+ * Examples can be added and removed one at a time. The mean and variance are updated with
+ * Welford's method. The minimum and maximum are updated on insertion, along with the number
+ * of examples holding them, and only removing the last example holding one of them makes
+ * them stale until they are recomputed from the examples left (see isStale and updateExtremes).
+**/
+public class FeatureStats
+{
+
+  private int count;           // number of examples
+  private double[] mean;       // mean of each attribute
+  private double[] m2;         // sum of the squared deviations from the mean
+  private double[] min;        // minimum of each attribute
+  private double[] max;        // maximum of each attribute
+  private int[] minCount;      // number of examples whose attribute is the minimum
+  private int[] maxCount;      // number of examples whose attribute is the maximum
+  private boolean stale;       // an extreme value was removed
+
+  /**
+   * Statistics of an empty set of examples with the given number of attributes
+  **/
+  public FeatureStats(int numAttributes)
+  {
+    mean = new double[numAttributes];
+    m2 = new double[numAttributes];
+    min = new double[numAttributes];
+    max = new double[numAttributes];
+    minCount = new int[numAttributes];
+    maxCount = new int[numAttributes];
+    resetExtremes();
+  }
+
+  /**
+   * Add an example to the statistics
+  **/
+  public void add(Example example)
+  {
+    count++;
+    double value, delta;
+    for (int i=0; i < mean.length; i++)
+    {
+      value = example.getAttribute(i);
+      delta = value - mean[i];
+      mean[i] = mean[i] + delta / count;
+      m2[i] = m2[i] + delta * (value - mean[i]);
+    }
+    updateExtremes(example);
+  }
+
+  /**
+   * Remove an example previously added to the statistics
+  **/
+  public void remove(Example example)
+  {
+    count--;
+    if (count == 0)
+    {
+      for (int i=0; i < mean.length; i++)
+        mean[i] = m2[i] = 0;
+      resetExtremes();
+      stale = false;
+      return;
+    }
+    double value, delta;
+    for (int i=0; i < mean.length; i++)
+    {
+      value = example.getAttribute(i);
+      delta = value - mean[i];
+      mean[i] = mean[i] - delta / count;
+      m2[i] = Math.max(m2[i] - delta * (value - mean[i]), 0);
+      if (value == min[i] && --minCount[i] == 0)
+        stale = true;
+      if (value == max[i] && --maxCount[i] == 0)
+        stale = true;
+    }
+  }
+
+  /**
+   * Return whether the minimum or maximum must be recomputed
+  **/
+  public boolean isStale()
+  {
+    return stale;
+  }
+
+  /**
+   * Forget the minimum and maximum before they are recomputed with updateExtremes
+  **/
+  public void resetExtremes()
+  {
+    for (int i=0; i < mean.length; i++)
+    {
+      min[i] = Double.POSITIVE_INFINITY;
+      max[i] = Double.NEGATIVE_INFINITY;
+      minCount[i] = maxCount[i] = 0;
+    }
+    stale = false;
+  }
+
+  /**
+   * Update the minimum and maximum with an example
+  **/
+  public void updateExtremes(Example example)
+  {
+    double value;
+    for (int i=0; i < mean.length; i++)
+    {
+      value = example.getAttribute(i);
+      if (value < min[i])
+      {
+        min[i] = value;
+        minCount[i] = 0;
+      }
+      if (value == min[i])
+        minCount[i]++;
+      if (value > max[i])
+      {
+        max[i] = value;
+        maxCount[i] = 0;
+      }
+      if (value == max[i])
+        maxCount[i]++;
+    }
+  }
+
+  /**
+   * Return the number of examples
+  **/
+  public int size()
+  {
+    return count;
+  }
+
+  public double getMin(int attribute)
+  {
+    return min[attribute];
+  }
+
+  public double getMax(int attribute)
+  {
+    return max[attribute];
+  }
+
+  /**
+   * Return the variance of an attribute (divided by the number of examples)
+  **/
+  public double getVariance(int attribute)
+  {
+    if (count == 0)
+      return 0;
+    return m2[attribute] / count;
+  }
+}
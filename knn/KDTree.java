@@ -0,0 +1,174 @@
+/**
+ * KD-tree over the scaled points of a train set.
+ * Each inner node splits its points at the median of the dimension of largest spread,
+ * leaves hold at most LEAFSIZE points.
+ * A subtree is only visited if the splitting plane is closer than the current k-th neighbor.
+**/
+public class KDTree implements NeighborIndex
+{
+
+  final static int LEAFSIZE = 16;   // maximum number of points in a leaf
+
+  private double[][] points;        // the scaled points of the train set
+  private Node root;                // root of the tree
+
+  /**
+   * Build the tree on the scaled points
+  **/
+  public KDTree(double[][] points)
+  {
+    this.points = points;
+    int[] positions = new int[points.length];
+    for (int i=0; i < positions.length; i++)
+      positions[i] = i;
+    root = build(positions, 0, positions.length);
+  }
+
+  /**
+   * Recursively build the subtree holding positions[start..end[
+  **/
+  private Node build(int[] positions, int start, int end)
+  {
+    Node node = new Node();
+    int dim = widestDimension(positions, start, end);
+    // make a leaf if there are few points or they are all identical
+    if (end - start <= LEAFSIZE || dim < 0)
+    {
+      node.bucket = new int[end - start];
+      System.arraycopy(positions, start, node.bucket, 0, end - start);
+      return node;
+    }
+    int middle = (start + end) / 2;
+    select(positions, start, end, middle, dim);
+    node.dim = dim;
+    node.split = points[positions[middle]][dim];
+    node.left = build(positions, start, middle);
+    node.right = build(positions, middle, end);
+    return node;
+  }
+
+  public void search(double[] query, int exclude, NeighborHeap heap)
+  {
+    if (points.length > 0)
+      search(root, query, exclude, heap);
+  }
+
+  public int size()
+  {
+    return points.length;
+  }
+
+  /**
+   * Search the nearer side first, then the farther side if the splitting plane
+   * is not farther than the current k-th neighbor
+  **/
+  private void search(Node node, double[] query, int exclude, NeighborHeap heap)
+  {
+    if (node.bucket != null)
+    {
+      int position;
+      for (int i=0; i < node.bucket.length; i++)
+      {
+        position = node.bucket[i];
+        if (position != exclude)
+          heap.insert(position, kNNExample.boundedSquaredDist(points[position], query, heap.worstDistance()));
+      }
+      return;
+    }
+    double diff = query[node.dim] - node.split;
+    if (diff < 0)
+    {
+      search(node.left, query, exclude, heap);
+      if (diff * diff <= heap.worstDistance())
+        search(node.right, query, exclude, heap);
+    }
+    else
+    {
+      search(node.right, query, exclude, heap);
+      if (diff * diff <= heap.worstDistance())
+        search(node.left, query, exclude, heap);
+    }
+  }
+
+  /**
+   * Return the dimension of largest spread of positions[start..end[
+   * or -1 if all these points are identical
+  **/
+  private int widestDimension(int[] positions, int start, int end)
+  {
+    if (end - start < 2)
+      return -1;
+    int bestDim = -1;
+    double bestSpread = 0;
+    double min, max, value;
+    for (int dim=0; dim < points[0].length; dim++)
+    {
+      min = max = points[positions[start]][dim];
+      for (int i=start+1; i < end; i++)
+      {
+        value = points[positions[i]][dim];
+        if (value < min)
+          min = value;
+        else if (value > max)
+          max = value;
+      }
+      if (max - min > bestSpread)
+      {
+        bestSpread = max - min;
+        bestDim = dim;
+      }
+    }
+    return bestDim;
+  }
+
+  /**
+   * Reorder positions[start..end[ so that positions[nth] is the point which would be there
+   * if sorted along dim, with no larger value before it and no smaller value after it
+  **/
+  private void select(int[] positions, int start, int end, int nth, int dim)
+  {
+    int left = start;
+    int right = end - 1;
+    int i, j, swap;
+    double pivot;
+    while (right > left)
+    {
+      pivot = points[positions[(left + right) >>> 1]][dim];
+      i = left;
+      j = right;
+      while (i <= j)
+      {
+        while (points[positions[i]][dim] < pivot)
+          i++;
+        while (points[positions[j]][dim] > pivot)
+          j--;
+        if (i <= j)
+        {
+          swap = positions[i];
+          positions[i] = positions[j];
+          positions[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (nth <= j)
+        right = j;
+      else if (nth >= i)
+        left = i;
+      else
+        break;
+    }
+  }
+
+  /**
+   * A node of the tree, either a leaf (bucket is set) or an inner node
+  **/
+  private static class Node
+  {
+    int dim;          // splitting dimension
+    double split;     // splitting value
+    Node left;        // points with value <= split
+    Node right;       // points with value >= split
+    int[] bucket;     // positions of the points in a leaf
+  }
+}
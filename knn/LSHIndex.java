@@ -0,0 +1,244 @@
+import java.util.*;
+
+/**
+ * Approximate neighbor index based on random projection locality sensitive hashing.
+ * Each of numTables hash tables cuts the space with numBits random hyperplanes through
+ * the mean of the scaled points, a point falls in the bucket given by the sides of the
+ * hyperplanes it lies on. Close points are likely to share a bucket in some table.
+ * A query looks up its own bucket in each table, plus numProbes buckets obtained by
+ * flipping the bits whose hyperplanes are closest to the query (multi-probe).
+ * More tables and probes raise the recall, more bits make buckets smaller and queries faster.
+ * Candidates are ranked by their exact distance if rerank is set, otherwise by the distance
+ * estimated from their projections on the hyperplanes of the first table.
+**/
+public class LSHIndex implements NeighborIndex
+{
+
+  private double[][] points;     // the scaled points of the train set
+  private int dimension;         // number of attributes of a point
+  private int numTables;         // number of hash tables
+  private int numBits;           // number of hyperplanes per table
+  private int numProbes;         // number of extra buckets probed per table
+  private boolean rerank;        // rank candidates by exact distance
+  private double[] mean;         // mean of the points, through which the hyperplanes go
+  private double[][] planes;     // normals of the hyperplanes of each table, numBits after the other
+  private int[][] keys;          // sorted bucket keys of each table
+  private int[][] buckets;       // positions of the points sorted by bucket key
+  private float[] sketches;      // projections of each point on the hyperplanes of the first table
+  private ThreadLocal<Scratch> scratch;
+
+  /**
+   * Build the hash tables on the scaled points (numBits from 1 to 30)
+  **/
+  public LSHIndex(double[][] points, int numTables, int numBits, int numProbes, boolean rerank, long seed)
+  {
+    // the bits of a bucket key must fit in an int
+    if (numBits < 1 || numBits > 30)
+      throw new IllegalArgumentException("numBits must be between 1 and 30, not " + numBits);
+    this.points = points;
+    this.dimension = points[0].length;
+    this.numTables = numTables;
+    this.numBits = numBits;
+    this.numProbes = Math.min(numProbes, numBits);
+    this.rerank = rerank;
+    Random random = new Random(seed);
+
+    mean = new double[dimension];
+    for (int i=0; i < points.length; i++)
+      for (int j=0; j < dimension; j++)
+        mean[j] = mean[j] + points[i][j];
+    for (int j=0; j < dimension; j++)
+      mean[j] = mean[j] / points.length;
+
+    // draw the hyperplanes with gaussian normals
+    planes = new double[numTables][numBits * dimension];
+    for (int table=0; table < numTables; table++)
+      for (int i=0; i < numBits * dimension; i++)
+        planes[table][i] = random.nextGaussian();
+
+    // hash every point and sort the points of each table by key
+    keys = new int[numTables][points.length];
+    buckets = new int[numTables][];
+    sketches = new float[points.length * numBits];
+    double[] projections = new double[numBits];
+    long[] sorted = new long[points.length];
+    for (int table=0; table < numTables; table++)
+    {
+      for (int i=0; i < points.length; i++)
+      {
+        project(points[i], table, projections, 0);
+        if (table == 0)
+          for (int b=0; b < numBits; b++)
+            sketches[i * numBits + b] = (float) projections[b];
+        // key in the high bits, position in the low bits
+        sorted[i] = ((long) hash(projections, 0) << 32) | i;
+      }
+      Arrays.sort(sorted);
+      buckets[table] = new int[points.length];
+      for (int i=0; i < points.length; i++)
+      {
+        keys[table][i] = (int) (sorted[i] >>> 32);
+        buckets[table][i] = (int) sorted[i];
+      }
+    }
+
+    scratch = new ThreadLocal<Scratch>() {
+      protected Scratch initialValue()
+      {
+        return new Scratch();
+      }
+    };
+  }
+
+  /**
+   * Offer to heap the points sharing a probed bucket with the query
+  **/
+  public void search(double[] query, int exclude, NeighborHeap heap)
+  {
+    Scratch s = scratch.get();
+    s.nextQuery();
+    int key, probe;
+    for (int table=0; table < numTables; table++)
+    {
+      project(query, table, s.projections, table * numBits);
+      key = hash(s.projections, table * numBits);
+      visit(table, key, query, exclude, heap, s);
+      s.probed = 0;
+      // probe the buckets across the hyperplanes nearest to the query
+      for (int i=0; i < numProbes; i++)
+      {
+        probe = nearestPlane(s.projections, table * numBits, s.probed);
+        s.probed = s.probed | (1 << probe);
+        visit(table, key ^ (1 << probe), query, exclude, heap, s);
+      }
+    }
+  }
+
+  public int size()
+  {
+    return points.length;
+  }
+
+  /**
+   * Offer the points of a bucket which have not been seen yet for this query
+  **/
+  private void visit(int table, int key, double[] query, int exclude, NeighborHeap heap, Scratch s)
+  {
+    int position;
+    for (int i=firstWithKey(keys[table], key); i < points.length && keys[table][i] == key; i++)
+    {
+      position = buckets[table][i];
+      if (position == exclude || s.marks[position] == s.stamp)
+        continue;
+      s.marks[position] = s.stamp;
+      if (rerank)
+        heap.insert(position, kNNExample.boundedSquaredDist(points[position], query, heap.worstDistance()));
+      else
+        heap.insert(position, estimatedDist(position, s.projections));
+    }
+  }
+
+  /**
+   * Return the squared distance estimated from the projections on the first table,
+   * each gaussian projection of a difference has the squared norm of the difference as expectation
+  **/
+  private double estimatedDist(int position, double[] projections)
+  {
+    double sum = 0;
+    double diff;
+    for (int b=0; b < numBits; b++)
+    {
+      diff = sketches[position * numBits + b] - projections[b];
+      sum = sum + diff * diff;
+    }
+    return sum / numBits;
+  }
+
+  /**
+   * Write into projections[offset..] the projections of the point on the hyperplanes of the table
+  **/
+  private void project(double[] point, int table, double[] projections, int offset)
+  {
+    double sum;
+    double[] normals = planes[table];
+    for (int b=0; b < numBits; b++)
+    {
+      sum = 0;
+      for (int j=0; j < dimension; j++)
+        sum = sum + normals[b * dimension + j] * (point[j] - mean[j]);
+      projections[offset + b] = sum;
+    }
+  }
+
+  /**
+   * Return the bucket key: bit b is set if the point is on the positive side of hyperplane b
+  **/
+  private int hash(double[] projections, int offset)
+  {
+    int key = 0;
+    for (int b=0; b < numBits; b++)
+      if (projections[offset + b] >= 0)
+        key = key | (1 << b);
+    return key;
+  }
+
+  /**
+   * Return the hyperplane nearest to the query which has not been probed yet
+  **/
+  private int nearestPlane(double[] projections, int offset, int probed)
+  {
+    int nearest = -1;
+    double margin;
+    double smallest = Double.POSITIVE_INFINITY;
+    for (int b=0; b < numBits; b++)
+    {
+      margin = Math.abs(projections[offset + b]);
+      if ((probed & (1 << b)) == 0 && margin < smallest)
+      {
+        smallest = margin;
+        nearest = b;
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * Return the first index of key in the sorted keys (or where it would be)
+  **/
+  private static int firstWithKey(int[] sortedKeys, int key)
+  {
+    int low = 0;
+    int high = sortedKeys.length;
+    int middle;
+    while (low < high)
+    {
+      middle = (low + high) >>> 1;
+      if (sortedKeys[middle] < key)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  /**
+   * Per thread state of a query: marks of the points already offered and the query projections
+  **/
+  private class Scratch
+  {
+    int[] marks = new int[points.length];          // stamp of the last query each point was offered to
+    int stamp = 0;                                 // stamp of the current query
+    int probed;                                    // hyperplanes probed in the current table
+    double[] projections = new double[numTables * numBits];
+
+    void nextQuery()
+    {
+      if (stamp == Integer.MAX_VALUE)
+      {
+        Arrays.fill(marks, 0);
+        stamp = 0;
+      }
+      stamp++;
+    }
+  }
+}
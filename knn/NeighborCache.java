@@ -0,0 +1,210 @@
+import java.io.*;
+import java.util.zip.*;
+import java.util.concurrent.*;
+
+/**
+ * Precomputed nearest neighbors of every example of a training set.
+ * Row i holds the maxK nearest neighbors of training example i among the other
+ * training examples, sorted from nearest to farthest, with their distances.
+ * An approximate index may find fewer than maxK of them, so each row keeps its count.
+ * Rows are kept in flat primitive arrays, distances as floats.
+ * Once built, a LOOCV pass over any grid of k[] (up to maxK) and kernel[] costs O(n.k)
+ * instead of a neighbor search per example.
+ * The distances depend on the feature weights, so the cache records the weighting mode
+ * of kNN.scaleFeatureWeights it was computed with, and a fingerprint of the training set
+ * and of the feature weights so that a saved cache is only loaded for the same points.
+**/
+public class NeighborCache
+{
+
+  final static int BLOCKSIZE = 64;  // number of examples handled by a single task
+
+  private int size;                 // number of training examples
+  private int maxK;                 // number of neighbors kept per example
+  private int mode;                 // feature weighting mode used for the distances
+  private long fingerprint;         // fingerprint of the training set and feature weights
+  private int[] counts;             // number of neighbors found for each example
+  private int[] neighbors;          // positions of the neighbors, maxK per example
+  private float[] distances;        // distances of the neighbors, maxK per example
+
+  /**
+   * Create an empty cache
+  **/
+  private NeighborCache(int size, int maxK, int mode, long fingerprint)
+  {
+    this.size = size;
+    this.maxK = maxK;
+    this.mode = mode;
+    this.fingerprint = fingerprint;
+    this.counts = new int[size];
+    this.neighbors = new int[size * maxK];
+    this.distances = new float[size * maxK];
+  }
+
+  /**
+   * Compute the maxK nearest neighbors of each scaled training point with the index
+   * built on these points, using the given number of threads.
+   * The fingerprint identifies the points (see kNN.fingerprint).
+  **/
+  public static NeighborCache build(NeighborIndex index, double[][] points, int maxK, int mode,
+                                    long fingerprint, int parallelism)
+  {
+    if (maxK > points.length - 1)
+      maxK = points.length - 1;
+    NeighborCache cache = new NeighborCache(points.length, maxK, mode, fingerprint);
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    pool.invoke(cache.new BuildTask(index, points, 0, points.length));
+    pool.shutdown();
+    return cache;
+  }
+
+  /**
+   * Fork/join task filling the rows from start to end (excluded)
+  **/
+  private class BuildTask extends RecursiveAction
+  {
+    private NeighborIndex index;
+    private double[][] points;
+    private int start;
+    private int end;
+
+    BuildTask(NeighborIndex index, double[][] points, int start, int end)
+    {
+      this.index = index;
+      this.points = points;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected void compute()
+    {
+      if (end - start > BLOCKSIZE)
+      {
+        int middle = (start + end) / 2;
+        invokeAll(new BuildTask(index, points, start, middle),
+                  new BuildTask(index, points, middle, end));
+        return;
+      }
+      NeighborHeap heap = new NeighborHeap(maxK);
+      for (int i=start; i < end; i++)
+      {
+        heap.clear(maxK);
+        index.search(points[i], i, heap);
+        heap.sort();
+        counts[i] = heap.size();
+        for (int j=0; j < counts[i]; j++)
+        {
+          neighbors[i * maxK + j] = heap.getPosition(j);
+          distances[i * maxK + j] = (float) Math.sqrt(heap.getDistance(j));
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the number of neighbors found for the training example (at most maxK)
+  **/
+  public int getCount(int example)
+  {
+    return counts[example];
+  }
+
+  /**
+   * Return the position of the i-th nearest neighbor of the training example, i < getCount
+  **/
+  public int getNeighbor(int example, int i)
+  {
+    return neighbors[example * maxK + i];
+  }
+
+  /**
+   * Return the distance of the i-th nearest neighbor of the training example, i < getCount
+  **/
+  public float getDistance(int example, int i)
+  {
+    return distances[example * maxK + i];
+  }
+
+  /**
+   * Return the number of training examples
+  **/
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Return the number of neighbors kept per example
+  **/
+  public int getMaxK()
+  {
+    return maxK;
+  }
+
+  /**
+   * Return the feature weighting mode the distances were computed with
+  **/
+  public int getMode()
+  {
+    return mode;
+  }
+
+  /**
+   * Return the fingerprint of the points the neighbors were computed on
+  **/
+  public long getFingerprint()
+  {
+    return fingerprint;
+  }
+
+  /**
+   * Save the cache to a compressed file
+  **/
+  public void save(String filename)
+  {
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                 new GZIPOutputStream(new FileOutputStream(filename))));
+      out.writeInt(size);
+      out.writeInt(maxK);
+      out.writeInt(mode);
+      out.writeLong(fingerprint);
+      for (int i=0; i < counts.length; i++)
+        out.writeInt(counts[i]);
+      for (int i=0; i < neighbors.length; i++)
+        out.writeInt(neighbors[i]);
+      for (int i=0; i < distances.length; i++)
+        out.writeFloat(distances[i]);
+      out.close();
+    }
+    catch (IOException e)
+    {
+      System.out.println(e);
+    }
+  }
+
+  /**
+   * Load a cache from a file written by save, null if it could not be read
+  **/
+  public static NeighborCache load(String filename)
+  {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+                               new GZIPInputStream(new FileInputStream(filename))));
+      NeighborCache cache = new NeighborCache(in.readInt(), in.readInt(), in.readInt(), in.readLong());
+      for (int i=0; i < cache.counts.length; i++)
+        cache.counts[i] = in.readInt();
+      for (int i=0; i < cache.neighbors.length; i++)
+        cache.neighbors[i] = in.readInt();
+      for (int i=0; i < cache.distances.length; i++)
+        cache.distances[i] = in.readFloat();
+      in.close();
+      return cache;
+    }
+    catch (IOException e)
+    {
+      System.out.println(e);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * A bounded max-heap of (position, squared distance) pairs.
+ * Used to collect the nearest neighbors of a query point: the root is always the
+ * farthest neighbor kept so far, so a candidate is kept only if it is closer.
+ * Ties on the distance are broken on the position so that every search order
+ * returns the same neighbors.
+**/
+public class NeighborHeap
+{
+
+  private int[] positions;     // positions of the neighbors in the train set
+  private double[] distances;  // their squared distance to the query
+  private int capacity;        // number of neighbors wanted
+  private int size;            // number of neighbors kept so far
+  private boolean[] removed;   // positions never kept, null if none
+
+  /**
+   * Create a heap holding at most capacity neighbors
+  **/
+  public NeighborHeap(int capacity)
+  {
+    positions = new int[capacity];
+    distances = new double[capacity];
+    this.capacity = capacity;
+    this.size = 0;
+  }
+
+  /**
+   * Empty the heap so that it holds at most capacity neighbors.
+   * The arrays are only reallocated if they are too small.
+  **/
+  public void clear(int capacity)
+  {
+    if (capacity > positions.length)
+    {
+      positions = new int[capacity];
+      distances = new double[capacity];
+    }
+    this.capacity = capacity;
+    this.size = 0;
+  }
+
+  /**
+   * Refuse the positions marked in removed from now on (null to accept every position)
+  **/
+  public void setRemoved(boolean[] removed)
+  {
+    this.removed = removed;
+  }
+
+  /**
+   * Offer the neighbor at position with the given squared distance.
+   * Returns true if it was kept.
+  **/
+  public boolean insert(int position, double distance)
+  {
+    if (removed != null && removed[position])
+      return false;
+    if (size < capacity)
+    {
+      // sift up from the last leaf
+      int child = size++;
+      while (child > 0)
+      {
+        int parent = (child - 1) / 2;
+        if (!greater(position, distance, positions[parent], distances[parent]))
+          break;
+        positions[child] = positions[parent];
+        distances[child] = distances[parent];
+        child = parent;
+      }
+      positions[child] = position;
+      distances[child] = distance;
+      return true;
+    }
+    if (capacity == 0 || !greater(positions[0], distances[0], position, distance))
+      return false;
+    // replace the farthest neighbor and sift down
+    siftDown(position, distance, size);
+    return true;
+  }
+
+  /**
+   * Return the squared distance a candidate must not exceed to be kept.
+   * Infinite as long as the heap is not full.
+  **/
+  public double worstDistance()
+  {
+    if (size < capacity)
+      return Double.POSITIVE_INFINITY;
+    return distances[0];
+  }
+
+  /**
+   * Sort the neighbors from nearest to farthest.
+   * The heap must be cleared before it is filled again.
+  **/
+  public void sort()
+  {
+    int position;
+    double distance;
+    for (int last=size-1; last > 0; last--)
+    {
+      position = positions[last];
+      distance = distances[last];
+      positions[last] = positions[0];
+      distances[last] = distances[0];
+      siftDown(position, distance, last);
+    }
+  }
+
+  /**
+   * Return the number of neighbors kept
+  **/
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Return the position in the train set of the i-th neighbor
+  **/
+  public int getPosition(int i)
+  {
+    return positions[i];
+  }
+
+  /**
+   * Return the squared distance of the i-th neighbor
+  **/
+  public double getDistance(int i)
+  {
+    return distances[i];
+  }
+
+  /**
+   * Place (position, distance) at the root of the first length entries and sift it down
+  **/
+  private void siftDown(int position, double distance, int length)
+  {
+    int parent = 0;
+    int child;
+    while ((child = 2 * parent + 1) < length)
+    {
+      if (child + 1 < length && greater(positions[child+1], distances[child+1], positions[child], distances[child]))
+        child++;
+      if (!greater(positions[child], distances[child], position, distance))
+        break;
+      positions[parent] = positions[child];
+      distances[parent] = distances[child];
+      parent = child;
+    }
+    positions[parent] = position;
+    distances[parent] = distance;
+  }
+
+  /**
+   * A neighbor is farther than another if its distance is larger, or if it is
+   * as far but comes later in the train set
+  **/
+  private static boolean greater(int position1, double distance1, int position2, double distance2)
+  {
+    return distance1 > distance2 || (distance1 == distance2 && position1 > position2);
+  }
+}
@@ -0,0 +1,21 @@
+/**
+ * A neighbor index is built once from the scaled points of a train set
+ * (see kNNExample.scale) and answers nearest neighbor queries on it.
+ * Points are referred to by their position in the train set.
+**/
+public interface NeighborIndex
+{
+
+  /**
+   * Offer to heap the nearest neighbors of the scaled query point.
+   * The heap capacity is the number of neighbors wanted, the heap is not sorted.
+   * The point at position exclude is skipped (use -1 to keep every point).
+  **/
+  public void search(double[] query, int exclude, NeighborHeap heap);
+
+  /**
+   * Return the number of points in this index
+  **/
+  public int size();
+
+}
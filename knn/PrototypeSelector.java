@@ -0,0 +1,236 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reduces a kNN training set to fewer prototypes.
+ * Wilson's edited nearest neighbor removes the examples misclassified by their k nearest
+ * neighbors (noise and class overlap), Hart's condensed nearest neighbor keeps only the examples
+ * needed for a 1-NN on the prototypes to classify the whole training set correctly.
+ * Neighbor searches run in parallel on the scaled points of the training set.
+**/
+public class PrototypeSelector
+{
+
+  final static int BLOCKSIZE = 64;  // number of examples handled by a single task
+
+  private kNNExample[] examples;    // the training set
+  private double[][] points;        // its scaled points
+  private int parallelism;          // number of threads
+
+  /**
+   * Set up the reduction of the training set with the given scaled points
+  **/
+  public PrototypeSelector(kNNExample[] examples, double[][] points, int parallelism)
+  {
+    this.examples = examples;
+    this.points = points;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Wilson's edited nearest neighbor.
+   * Returns the positions of the examples correctly classified by their k nearest neighbors.
+  **/
+  public int[] edit(int k)
+  {
+    NeighborIndex index = new BallTree(points);
+    boolean[] correct = new boolean[examples.length];
+    run(new Task(Task.EDIT, index, null, k, correct, null, null, 0, examples.length));
+    int size = 0;
+    for (int i=0; i < examples.length; i++)
+      if (correct[i])
+        size++;
+    int[] kept = new int[size];
+    size = 0;
+    for (int i=0; i < examples.length; i++)
+      if (correct[i])
+        kept[size++] = i;
+    return kept;
+  }
+
+  /**
+   * Hart's condensed nearest neighbor.
+   * Starting from the first example, each example misclassified by its nearest prototype
+   * becomes a prototype, until a pass over the training set adds none.
+   * At each pass the nearest prototype of every example is found in parallel among the
+   * prototypes of the previous passes. The sequential scan then only compares an example to
+   * the prototypes added during the current pass, so the result is the one of Hart's algorithm.
+   * Returns the positions of the prototypes in increasing order.
+  **/
+  public int[] condense()
+  {
+    int n = examples.length;
+    int[] prototypes = new int[n];
+    boolean[] isPrototype = new boolean[n];
+    int size = 1;
+    prototypes[0] = 0;
+    isPrototype[0] = true;
+    int[] nearest = new int[n];          // nearest prototype of each example at the start of the pass
+    double[] nearestDist = new double[n];
+    boolean added = true;
+    while (added)
+    {
+      added = false;
+      // nearest prototype of the previous passes, in parallel
+      int passStart = size;
+      double[][] prototypePoints = new double[size][];
+      for (int i=0; i < size; i++)
+        prototypePoints[i] = points[prototypes[i]];
+      NeighborIndex index = new BallTree(prototypePoints);
+      run(new Task(Task.NEAREST, index, prototypes, 1, isPrototype, nearest, nearestDist, 0, n));
+
+      // sequential scan comparing only to the prototypes added in this pass
+      double dist;
+      for (int i=0; i < n; i++)
+      {
+        if (isPrototype[i])
+          continue;
+        for (int j=passStart; j < size; j++)
+        {
+          dist = BruteForceIndex.squaredDist(points[i], points[prototypes[j]]);
+          if (dist < nearestDist[i])
+          {
+            nearestDist[i] = dist;
+            nearest[i] = prototypes[j];
+          }
+        }
+        if (examples[nearest[i]].getClassLabel() != examples[i].getClassLabel())
+        {
+          prototypes[size++] = i;
+          isPrototype[i] = true;
+          added = true;
+        }
+      }
+    }
+    int[] kept = new int[size];
+    System.arraycopy(prototypes, 0, kept, 0, size);
+    Arrays.sort(kept);
+    return kept;
+  }
+
+  /**
+   * Return the accuracy of an unweighted k-NN on the training set where each example is
+   * classified by its k nearest neighbors among the given prototypes, itself excluded.
+   * The positions of the prototypes must be in increasing order.
+  **/
+  public double accuracy(int[] prototypes, int k)
+  {
+    double[][] prototypePoints = new double[prototypes.length][];
+    for (int i=0; i < prototypes.length; i++)
+      prototypePoints[i] = points[prototypes[i]];
+    NeighborIndex index = new BallTree(prototypePoints);
+    boolean[] correct = new boolean[examples.length];
+    run(new Task(Task.ACCURACY, index, prototypes, k, correct, null, null, 0, examples.length));
+    int numCorrect = 0;
+    for (int i=0; i < examples.length; i++)
+      if (correct[i])
+        numCorrect++;
+    return 1.0 * numCorrect / examples.length;
+  }
+
+  /**
+   * Run the task with the given number of threads
+  **/
+  private void run(Task task)
+  {
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    pool.invoke(task);
+    pool.shutdown();
+  }
+
+  /**
+   * Fork/join task running one of the jobs on the examples from start to end (excluded)
+  **/
+  private class Task extends RecursiveAction
+  {
+    final static int EDIT     = 0;  // is each example classified correctly by the others
+    final static int NEAREST  = 1;  // nearest prototype of each example which is not a prototype
+    final static int ACCURACY = 2;  // is each example classified correctly by the prototypes
+
+    private int job;
+    private NeighborIndex index;    // index of the examples or of the prototypes
+    private int[] prototypes;       // positions of the prototypes in the training set
+    private int k;
+    private boolean[] flags;        // results of EDIT and ACCURACY, prototype marks for NEAREST
+    private int[] nearest;          // results of NEAREST
+    private double[] nearestDist;
+    private int start;
+    private int end;
+
+    Task(int job, NeighborIndex index, int[] prototypes, int k, boolean[] flags,
+         int[] nearest, double[] nearestDist, int start, int end)
+    {
+      this.job = job;
+      this.index = index;
+      this.prototypes = prototypes;
+      this.k = k;
+      this.flags = flags;
+      this.nearest = nearest;
+      this.nearestDist = nearestDist;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected void compute()
+    {
+      if (end - start > BLOCKSIZE)
+      {
+        int middle = (start + end) / 2;
+        invokeAll(new Task(job, index, prototypes, k, flags, nearest, nearestDist, start, middle),
+                  new Task(job, index, prototypes, k, flags, nearest, nearestDist, middle, end));
+        return;
+      }
+      NeighborHeap heap = new NeighborHeap(k);
+      for (int i=start; i < end; i++)
+      {
+        heap.clear(k);
+        if (job == EDIT)
+        {
+          index.search(points[i], i, heap);
+          flags[i] = isCorrect(i, heap, null);
+        }
+        else if (job == NEAREST)
+        {
+          if (flags[i])
+            continue;
+          index.search(points[i], -1, heap);
+          nearest[i] = prototypes[heap.getPosition(0)];
+          nearestDist[i] = heap.getDistance(0);
+        }
+        else
+        {
+          index.search(points[i], positionOf(i), heap);
+          flags[i] = isCorrect(i, heap, prototypes);
+        }
+      }
+    }
+
+    /**
+     * Return whether the neighbors in heap vote for the label of example i.
+     * Neighbor positions are mapped to the training set through prototypes if given.
+    **/
+    private boolean isCorrect(int i, NeighborHeap heap, int[] prototypes)
+    {
+      if (heap.size() == 0)
+        return false;
+      double sumLabel = 0;
+      for (int n=0; n < heap.size(); n++)
+      {
+        if (prototypes == null)
+          sumLabel = sumLabel + examples[heap.getPosition(n)].getClassLabel();
+        else
+          sumLabel = sumLabel + examples[prototypes[heap.getPosition(n)]].getClassLabel();
+      }
+      return Math.abs(examples[i].getClassLabel() - sumLabel / heap.size()) <= 0.5;
+    }
+
+    /**
+     * Return the position of example i among the prototypes, -1 if it is not one
+    **/
+    private int positionOf(int i)
+    {
+      int position = Arrays.binarySearch(prototypes, i);
+      return position < 0 ? -1 : position;
+    }
+  }
+}
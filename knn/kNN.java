@@ -3,6 +3,7 @@
  **/
 
 import java.util.*;
+import java.util.concurrent.*;
 import ann.*;
 
 /**
@@ -13,16 +14,46 @@ import ann.*;
 public class kNN
 {
 
+  final static int LINEARSCAN = 0;  // compare the query to every train example
+  final static int KDTREE     = 1;  // search the neighbors with a KD-tree
+  final static int BALLTREE   = 2;  // search the neighbors with a ball tree
+  final static int LSH        = 3;  // approximate the neighbors with locality sensitive hashing
+  final static int BLOCKSIZE  = 25; // number of LOOCV queries handled by a single task
+  final static int BATCHSIZE  = 1024; // number of test examples scored in a single batch
+  final static int CONDENSED  = 0;  // keep the prototypes of Hart's condensed nearest neighbor
+  final static int EDITED     = 1;  // drop the examples misclassified by Wilson's edited nearest neighbor
+  final static double DRIFT   = 0.05; // relative change of a feature weight making updates rescale the points
+
   private DataSet dataFile;         // the data set
   private int[] k;                  // holds the number of nearest neighbors
   private int[] kernel;             // holds the kernel widths
-  private int trainSetSize;         // size of the training set
+  private int trainSetSize;         // size of the training set (with the examples removed since the last build)
   private int testSetSize;          // size of the final test set
   private kNNExample[] trainSet;    // the training set
   private kNNExample[] testSet;     // the final test set
   private int[][] numCorrect;       // keeps track of the number correctly classified instances
   private double[][] squaredError;  // keeps track of the squared error
   private double[][][] predictions;
+  private DynamicIndex index;       // neighbor index built on the training set
+  private int indexType;            // type of the neighbor index
+  private boolean approximate;      // whether the index only approximates the nearest neighbors
+  private double[][] points;        // scaled attributes of the training set
+  private int weightingMode;        // feature weighting mode (see scaleFeatureWeights)
+  private NeighborCache[] caches = new NeighborCache[3];  // cached neighbors for each weighting mode
+  private BatchScorer scorer;       // blocked distance computations for batches of test examples
+  private int parallelism = 1;      // number of threads used for LOOCV
+  private ForkJoinPool pool;        // threads of LOOCV and of the batches, made once (see getPool)
+  private FeatureStats stats;       // running statistics of the attributes of the training set
+  private double[] scaledWeights;   // feature weights the points were scaled with
+  private double[] scaleFactors;    // square roots of the scaled weights
+  private int[] attributeOrder;     // attributes of non zero weight, in the order of the scaled points
+  private boolean[] selected;       // features kept by selectFeatures, null to keep them all
+  private HashMap<Integer,Integer> positions = new HashMap<Integer,Integer>();  // position of each training example by id
+  private int nextId;               // id of the next example added
+  private int numTables = 10;       // parameters of the LSH index (see LSHIndex)
+  private int numBits = 12;
+  private int numProbes = 4;
+  private boolean rerank = true;
 
   /**
    * Initialize the training set and the test set of the kNN algorithm
@@ -34,10 +65,11 @@ public class kNN
     this.dataFile = dataFile;
 
     // Set up the training set
-    this.trainSetSize = trainSetSize;
-    trainSet = new kNNExample[trainSetSize];
+    kNNExample[] examples = new kNNExample[trainSetSize];
     for (int i=0; i < trainSetSize; i++)
-      trainSet[i] = new kNNExample(dataFile.getExample(i), i);
+      examples[i] = new kNNExample(dataFile.getExample(i), i);
+    setTrainSet(examples);
+    nextId = dataFile.size();
 
     // Set up the test set
     this.testSetSize = dataFile.size() - trainSetSize;
@@ -50,7 +82,320 @@ public class kNN
     }
 
     // Scale feature weights (use the train set for that)
-    scaleFeatureWeights(1);
+    weightingMode = 1;
+    initStats();
+    scaleFeatureWeights(weightingMode);
+
+    // Build the neighbor index once for all queries
+    buildIndex(BALLTREE);
+  }
+
+  /**
+   * Build the neighbor index of the given type on the scaled training set.
+   * Must be called again whenever the feature weights change.
+   * The examples removed since the last build are dropped from the training set.
+  **/
+  public void buildIndex(int type)
+  {
+    if (index != null && index.isModified())
+      compact();
+    indexType = type;
+    approximate = false;
+    points = new double[trainSetSize][];
+    for (int i=0; i < trainSetSize; i++)
+      points[i] = scale(trainSet[i], null);
+    NeighborIndex base;
+    if (type == LSH)
+    {
+      base = new LSHIndex(points, numTables, numBits, numProbes, rerank, 0);
+      approximate = true;
+    }
+    else if (type == KDTREE)
+      base = new KDTree(points);
+    else if (type == BALLTREE)
+      base = new BallTree(points);
+    else
+      base = new BruteForceIndex(points);
+    index = new DynamicIndex(base, points);
+    scorer = null;
+  }
+
+  /**
+   * Replace the index by an approximate LSH index on the scaled training set
+   * (see LSHIndex for the parameters).
+   * Queries become faster but may miss some of the true nearest neighbors,
+   * use reportRecall to choose the parameters.
+  **/
+  public void buildApproximateIndex(int numTables, int numBits, int numProbes, boolean rerank)
+  {
+    this.numTables = numTables;
+    this.numBits = numBits;
+    this.numProbes = numProbes;
+    this.rerank = rerank;
+    buildIndex(LSH);
+  }
+
+  /**
+   * Add a labeled example to the training set and return its id.
+   * The statistics of the attributes are updated, but the points are only rescaled when
+   * a feature weight drifts by more than DRIFT from the one they were scaled with.
+   * Otherwise the example is added to the index, which is rebuilt once too many
+   * examples were added or removed (see DynamicIndex). Cached neighbors are dropped.
+  **/
+  public int addExample(Example example)
+  {
+    kNNExample newExample = new kNNExample(example, nextId++);
+    if (trainSetSize == trainSet.length)
+    {
+      kNNExample[] examples = new kNNExample[2 * trainSetSize + 1];
+      System.arraycopy(trainSet, 0, examples, 0, trainSetSize);
+      trainSet = examples;
+    }
+    trainSet[trainSetSize] = newExample;
+    positions.put(newExample.getId(), trainSetSize);
+    trainSetSize++;
+    index.add(scale(newExample, null));
+    stats.add(newExample);
+    update();
+    return newExample.getId();
+  }
+
+  /**
+   * Remove the training example of the given id (see addExample).
+   * Returns false if there is no such example.
+  **/
+  public boolean removeExample(int id)
+  {
+    Integer position = positions.remove(id);
+    if (position == null)
+      return false;
+    index.remove(position);
+    stats.remove(trainSet[position]);
+    update();
+    return true;
+  }
+
+  /**
+   * Rescale the points if the feature weights drifted, otherwise rebuild the index if needed
+  **/
+  private void update()
+  {
+    caches = new NeighborCache[3];
+    if (hasDrifted())
+    {
+      scaleFeatureWeights(weightingMode);
+      buildIndex(indexType);
+    }
+    else if (index.needsRebuild())
+      buildIndex(indexType);
+  }
+
+  /**
+   * Rebuild the index on the examples left if examples were added or removed since it was built
+  **/
+  private void commitUpdates()
+  {
+    if (index.isModified())
+      buildIndex(indexType);
+  }
+
+  /**
+   * Drop the removed examples from the training set
+  **/
+  private void compact()
+  {
+    int size = 0;
+    for (int i=0; i < trainSetSize; i++)
+      if (!index.isRemoved(i))
+        size++;
+    kNNExample[] examples = new kNNExample[size];
+    size = 0;
+    for (int i=0; i < trainSetSize; i++)
+      if (!index.isRemoved(i))
+        examples[size++] = trainSet[i];
+    setTrainSet(examples);
+  }
+
+  /**
+   * Replace the training set and find the position of each example
+  **/
+  private void setTrainSet(kNNExample[] examples)
+  {
+    trainSet = examples;
+    trainSetSize = examples.length;
+    positions.clear();
+    for (int i=0; i < trainSetSize; i++)
+      positions.put(trainSet[i].getId(), i);
+  }
+
+  /**
+   * Report the recall of the current index: the fraction of the numNeighbors exact nearest
+   * neighbors it finds for the first numQueries examples of the test set.
+   * Also report the average time of a query with this index and with an exact search.
+   * Returns the recall.
+  **/
+  public double reportRecall(int numNeighbors, int numQueries)
+  {
+    commitUpdates();
+    numQueries = Math.min(numQueries, testSetSize);
+    NeighborIndex exact = new BruteForceIndex(points);
+    double[][] queries = new double[numQueries][];
+    for (int i=0; i < numQueries; i++)
+      queries[i] = scale(testSet[i], null);
+
+    // exact nearest neighbors, marked by query
+    NeighborHeap heap = new NeighborHeap(numNeighbors);
+    boolean[][] isNeighbor = new boolean[numQueries][trainSetSize];
+    long start = System.nanoTime();
+    for (int i=0; i < numQueries; i++)
+    {
+      heap.clear(numNeighbors);
+      exact.search(queries[i], -1, heap);
+      for (int n=0; n < heap.size(); n++)
+        isNeighbor[i][heap.getPosition(n)] = true;
+    }
+    double exactTime = (System.nanoTime() - start) / 1000000.0 / numQueries;
+
+    // nearest neighbors found by the index
+    int found = 0;
+    start = System.nanoTime();
+    for (int i=0; i < numQueries; i++)
+    {
+      heap.clear(numNeighbors);
+      index.search(queries[i], -1, heap);
+      heap.sort();
+      for (int n=0; n < heap.size(); n++)
+        if (isNeighbor[i][heap.getPosition(n)])
+          found++;
+    }
+    double indexTime = (System.nanoTime() - start) / 1000000.0 / numQueries;
+
+    double recall = 1.0 * found / (numQueries * Math.min(numNeighbors, trainSetSize));
+    System.out.println("Recall of the index for k = " + numNeighbors + " : " + recall);
+    System.out.println("Time per query =  " + indexTime + " ms , exact search =  " + exactTime + " ms");
+    return recall;
+  }
+
+  /**
+   * Change the feature weighting mode (see scaleFeatureWeights) and rebuild the index.
+   * Neighbors cached for the new mode are reused.
+  **/
+  public void setWeightingMode(int mode)
+  {
+    weightingMode = mode;
+    scaleFeatureWeights(mode);
+    buildIndex(indexType);
+  }
+
+  /**
+   * Compute and cache the maxK nearest neighbors of each training example
+   * for the current weighting mode.
+   * LOOCV in train then uses the cache whenever max k[] <= maxK.
+  **/
+  public void buildCache(int maxK)
+  {
+    commitUpdates();
+    caches[weightingMode] = NeighborCache.build(index, points, maxK, weightingMode,
+                                                fingerprint(weightingMode), parallelism);
+  }
+
+  /**
+   * Save the neighbors cached for the current weighting mode
+  **/
+  public void saveCache(String filename)
+  {
+    if (caches[weightingMode] != null)
+      caches[weightingMode].save(filename);
+  }
+
+  /**
+   * Load cached neighbors saved for this training set.
+   * Returns false if they could not be read or were not computed for this training set
+   * with the current feature weights of their weighting mode.
+  **/
+  public boolean loadCache(String filename)
+  {
+    commitUpdates();
+    NeighborCache cache = NeighborCache.load(filename);
+    if (cache == null)
+      return false;
+    if (cache.size() != trainSetSize || cache.getFingerprint() != fingerprint(cache.getMode()))
+    {
+      System.out.println("The neighbors of " + filename + " were computed on other points");
+      return false;
+    }
+    caches[cache.getMode()] = cache;
+    return true;
+  }
+
+  /**
+   * Select the features of the kNN with LOOCV (see FeatureSelector), starting from no feature
+   * if forward is set or from every feature otherwise. Every feature is a candidate, even
+   * those left out by a previous selection. The criterion is the accuracy of an unweighted
+   * k-NN. The other features get a weight of 0 and the index is rebuilt.
+   * Returns the selected features.
+  **/
+  public boolean[] selectFeatures(boolean forward, int k)
+  {
+    commitUpdates();
+    selected = null;
+    FeatureSelector selector = new FeatureSelector(trainSet, featureWeights(weightingMode), k, parallelism);
+    if (forward)
+      selected = selector.forward();
+    else
+      selected = selector.backward();
+    scaleFeatureWeights(weightingMode);
+    buildIndex(indexType);
+    caches = new NeighborCache[3];
+    return selected;
+  }
+
+  /**
+   * Reduce the training set to fewer prototypes (see PrototypeSelector) and rebuild the index.
+   * Method is CONDENSED for Hart's condensed nearest neighbor
+   *        or EDITED for Wilson's edited nearest neighbor with k neighbors.
+   * Reports the compression ratio and the LOOCV accuracy of a k-NN on the original
+   * training set before and after the reduction. Cached neighbors are dropped.
+   * Returns the reduced training set. If no example would be kept (editing may remove
+   * every example) the training set is left unchanged and returned.
+  **/
+  public kNNExample[] reduceTrainingSet(int method, int k)
+  {
+    commitUpdates();
+    PrototypeSelector selector = new PrototypeSelector(trainSet, points, parallelism);
+    int[] all = new int[trainSetSize];
+    for (int i=0; i < trainSetSize; i++)
+      all[i] = i;
+    double accuracyBefore = selector.accuracy(all, k);
+    int[] kept;
+    if (method == CONDENSED)
+      kept = selector.condense();
+    else
+      kept = selector.edit(k);
+    if (kept.length == 0)
+    {
+      System.out.println("No example would be kept , the training set is left unchanged");
+      kNNExample[] unchanged = new kNNExample[trainSetSize];
+      System.arraycopy(trainSet, 0, unchanged, 0, trainSetSize);
+      return unchanged;
+    }
+    double accuracyAfter = selector.accuracy(kept, k);
+
+    System.out.println("Reduced training set from " + trainSetSize + " to " + kept.length + " examples");
+    System.out.println("Compression ratio =  " + 1.0 * trainSetSize / kept.length);
+    System.out.println("LOOCV accuracy for k = " + k + " : " + 100.0 * accuracyBefore
+                       + "% before , " + 100.0 * accuracyAfter + "% after");
+
+    kNNExample[] reduced = new kNNExample[kept.length];
+    for (int i=0; i < kept.length; i++)
+      reduced[i] = trainSet[kept[i]];
+    setTrainSet(reduced);
+    // the weights and the index follow the statistics of the reduced set
+    initStats();
+    scaleFeatureWeights(weightingMode);
+    caches = new NeighborCache[3];
+    buildIndex(indexType);
+    return reduced;
   }
 
   /**
@@ -61,6 +406,8 @@ public class kNN
   **/
   public int[] train(int k[], int kernel[])
   {
+    commitUpdates();
+
     // Initialize numCorrect and squaredError arrays
     numCorrect = new int[kernel.length][k.length];
     squaredError = new double[kernel.length][k.length];
@@ -71,28 +418,27 @@ public class kNN
     this.kernel = kernel;
 
     // Repeteadly test each query example on the remaining part of the training set
-    // and update the correclty classified examples and their squared error
-    kNNExample queryExample;                                       // the query example
-    kNNExample[] subTrainSet = new kNNExample[trainSetSize - 1];   // the remaing train set
-    int index = 0;
-    for (int i=0; i < trainSetSize; i++)
+    // and update the correclty classified examples and their squared error.
+    // The queries are split into blocks of BLOCKSIZE, each with its own accumulators.
+    // Blocks are always merged in the same order so results do not depend on the threads.
+    int numBlocks = (trainSetSize + BLOCKSIZE - 1) / BLOCKSIZE;
+    int[][][] blockCorrect = new int[numBlocks][][];
+    double[][][] blockError = new double[numBlocks][][];
+    if (parallelism > 1)
     {
-      index = 0;
-      queryExample = trainSet[i];
-      // set up the sub-training set on wich the query example will be tested
-      for (int j=0; j < trainSetSize; j++)
+      getPool().invoke(new LOOCVTask(0, numBlocks, blockCorrect, blockError));
+      for (int block=0; block < numBlocks; block++)
+        mergeBlock(blockCorrect[block], blockError[block]);
+    }
+    else
+    {
+      for (int block=0; block < numBlocks; block++)
       {
-        if (!queryExample.equals(trainSet[j]))
-        {
-          subTrainSet[index] = trainSet[j];
-          index++;
-        }
+        validateBlock(block, blockCorrect, blockError);
+        mergeBlock(blockCorrect[block], blockError[block]);
+        // print the results with smallest value of kernel width and smallest k
+        printSimple(Math.min((block+1) * BLOCKSIZE, trainSetSize) - 1);
       }
-      // test the query example on this sub-training set
-      predictions[i]=testSingle(queryExample, subTrainSet);
-      // print the results with smallest value of kernel width and smallest k
-      if (i%25 == 0)
-        printSimple(i);
     }
 
     // Print the final results
@@ -105,11 +451,113 @@ public class kNN
 
   }
 
+  /**
+   * Set the number of threads used for LOOCV in train and for batches in test (1 by default).
+   * The results are the same whatever the number of threads.
+  **/
+  public void setParallelism(int parallelism)
+  {
+    this.parallelism = parallelism;
+    if (pool != null)
+      pool.shutdown();
+    pool = null;
+  }
+
+  /**
+   * Return the pool of threads of this kNN, made on first use with parallelism threads
+  **/
+  private ForkJoinPool getPool()
+  {
+    if (pool == null)
+      pool = new ForkJoinPool(parallelism);
+    return pool;
+  }
+
+  /**
+   * Test each training example of the given block on the training set without itself.
+   * Its predictions are saved and its number of correctly classified examples
+   * and squared errors are kept in blockCorrect[block] and blockError[block].
+  **/
+  private void validateBlock(int block, int[][][] blockCorrect, double[][][] blockError)
+  {
+    int[][] correct = new int[kernel.length][k.length];
+    double[][] error = new double[kernel.length][k.length];
+    kNNQuery scratch = new kNNQuery(dataFile.getAttributeNum(), k[k.length-1]);
+    // use the cached neighbors if there are enough of them
+    int numNeighbors = Math.min(k[k.length-1], trainSetSize - 1);
+    NeighborCache cache = caches[weightingMode];
+    if (cache != null && cache.getMaxK() < numNeighbors)
+      cache = null;
+    int end = Math.min((block+1) * BLOCKSIZE, trainSetSize);
+    for (int i=block * BLOCKSIZE; i < end; i++)
+    {
+      if (cache != null)
+      {
+        scratch.load(cache, i, numNeighbors);
+        vote(scratch, k, kernel, predictions[i]);
+      }
+      else
+        predict(trainSet[i], k, kernel, i, scratch, predictions[i]);
+      score(trainSet[i].getClassLabel(), predictions[i], correct, error);
+    }
+    blockCorrect[block] = correct;
+    blockError[block] = error;
+  }
+
+  /**
+   * Add the results of a block to the number of correctly classified examples
+   * and to the squared error
+  **/
+  private void mergeBlock(int[][] correct, double[][] error)
+  {
+    for (int kernelIndex=0; kernelIndex < kernel.length; kernelIndex++)
+    {
+      for (int kIndex=0; kIndex < k.length; kIndex++)
+      {
+        numCorrect[kernelIndex][kIndex] = numCorrect[kernelIndex][kIndex] + correct[kernelIndex][kIndex];
+        squaredError[kernelIndex][kIndex] = squaredError[kernelIndex][kIndex] + error[kernelIndex][kIndex];
+      }
+    }
+  }
+
+  /**
+   * Fork/join task validating the blocks from firstBlock to lastBlock (excluded)
+  **/
+  private class LOOCVTask extends RecursiveAction
+  {
+    private int firstBlock;
+    private int lastBlock;
+    private int[][][] blockCorrect;
+    private double[][][] blockError;
+
+    LOOCVTask(int firstBlock, int lastBlock, int[][][] blockCorrect, double[][][] blockError)
+    {
+      this.firstBlock = firstBlock;
+      this.lastBlock = lastBlock;
+      this.blockCorrect = blockCorrect;
+      this.blockError = blockError;
+    }
+
+    protected void compute()
+    {
+      if (lastBlock - firstBlock == 1)
+      {
+        validateBlock(firstBlock, blockCorrect, blockError);
+        return;
+      }
+      int middle = (firstBlock + lastBlock) / 2;
+      invokeAll(new LOOCVTask(firstBlock, middle, blockCorrect, blockError),
+                new LOOCVTask(middle, lastBlock, blockCorrect, blockError));
+    }
+  }
+
   /**
    * Test the test set with values with given values of k[] and kernel[].
   **/
   public void test(int[] bestK, int [] bestKernel)
   {
+    commitUpdates();
+
     // Initialize numCorrect and squaredError arrays
     numCorrect = new int[bestKernel.length][bestK.length];
     squaredError = new double[bestKernel.length][bestK.length];
@@ -120,13 +568,23 @@ public class kNN
     this.kernel = bestKernel;
 
     // Evaluate each example from the test set onto the training set
-    kNNExample testExample;
-    for (int i=0; i < testSetSize; i++)
+    // scoring the test set by batches of BATCHSIZE examples
+    kNNExample[] batch;
+    int batchSize;
+    for (int start=0; start < testSetSize; start += BATCHSIZE)
     {
-      testExample = testSet[i];   // see about evaluation set if makes more sense
-      predictions[i]=testSingle(testExample, trainSet);
-      if (i%25==0)
-        printSimple(i);
+      batchSize = Math.min(BATCHSIZE, testSetSize - start);
+      batch = new kNNExample[batchSize];
+      System.arraycopy(testSet, start, batch, 0, batchSize);
+      double[][][] batchPredictions = new double[batchSize][][];
+      System.arraycopy(predictions, start, batchPredictions, 0, batchSize);
+      predictBatch(batch, bestK, bestKernel, batchPredictions);
+      for (int i=start; i < start + batchSize; i++)
+      {
+        score(testSet[i].getClassLabel(), predictions[i], numCorrect, squaredError);
+        if (i%25==0)
+          printSimple(i);
+      }
     }
     printResults(testSetSize-1);
     System.out.println();
@@ -135,64 +593,119 @@ public class kNN
   }
 
   /**
-   * Test the single example on a train set
-   * Updates the squared error and the number of correctly classified examples
+   * Predict the probability of the example to have label 1 for each kernel width of kernel[]
+   * and each number of nearest neighbors of k[] (assumed sorted).
+   * Uses the training set without the example at position exclude (-1 to use the whole training set).
+   * The training set and its index are only read, all the state of the query is kept in scratch,
+   * so many threads can predict at once as long as each has its own scratch.
+   * Nothing is allocated once scratch is large enough for max k[].
   **/
-  private double[][] testSingle (Example testExample, kNNExample[] trainSet)
+  public void predict(Example example, int[] k, int[] kernel, int exclude, kNNQuery scratch, double[][] predictions)
   {
-    // Sort the train set to get the nearest neighbors
-    // first set the distance each example is from the test example
-    for (int i=0; i < trainSet.length; i++)
-      trainSet[i].setRelativeDist(testExample);
-    // only sort if the maximum of neighbors < the size of the train set
-    if (k[0] < trainSetSize - 1)
+    // Get the max k[] nearest neighbors from the index, nearest first
+    int numNeighbors = k[k.length-1];
+    if (numNeighbors > index.size() - (exclude < 0 ? 0 : 1))
+      numNeighbors = index.size() - (exclude < 0 ? 0 : 1);
+    scratch.clear(numNeighbors);
+    index.search(scale(example, scratch.point), exclude, scratch.heap);
+    scratch.sort();
+    vote(scratch, k, kernel, predictions);
+  }
+
+  /**
+   * Same as predict for a batch of examples, each using the whole training set.
+   * The distances of the batch to the training set are computed by blocks
+   * with as many threads as set by setParallelism.
+  **/
+  public void predictBatch(Example[] examples, int[] k, int[] kernel, double[][][] predictions)
+  {
+    // the batch scorer is exact and only knows the points of the last build,
+    // an approximate or updated index is queried example by example
+    if (approximate || index.isModified())
+    {
+      kNNQuery scratch = new kNNQuery(dataFile.getAttributeNum(), k[k.length-1]);
+      for (int i=0; i < examples.length; i++)
+        predict(examples[i], k, kernel, -1, scratch, predictions[i]);
+      return;
+    }
+    if (scorer == null)
+      scorer = new BatchScorer(points);
+    int numNeighbors = Math.min(k[k.length-1], trainSetSize);
+    double[][] queries = new double[examples.length][];
+    for (int i=0; i < examples.length; i++)
+      queries[i] = scale(examples[i], null);
+    int[] positions = new int[examples.length * numNeighbors];
+    double[] distances = new double[examples.length * numNeighbors];
+    scorer.search(queries, numNeighbors, getPool(), positions, distances);
+    kNNQuery scratch = new kNNQuery(dataFile.getAttributeNum(), numNeighbors);
+    for (int i=0; i < examples.length; i++)
     {
-      kNNComparator comparator = new kNNComparator();
-      Arrays.sort(trainSet, comparator);
+      scratch.load(positions, distances, i * numNeighbors, numNeighbors);
+      vote(scratch, k, kernel, predictions[i]);
     }
+  }
 
-    // Update the squared error and the number of correctly classified examples
-    // for each kernel width and each number of nearest neighbors considered
-    int targetLabel = testExample.getClassLabel();
-    kNNExample neighbor;     // neighbor considered
-    double neighborWeight;   // its weight
+  /**
+   * Compute the probability of label 1 for each kernel width of kernel[]
+   * and each number of nearest neighbors of k[] from the sorted neighbors in scratch
+  **/
+  private void vote(kNNQuery scratch, int[] k, int[] kernel, double[][] predictions)
+  {
+    int numNeighbors = scratch.size();
+    double neighborWeight;   // weight of the neighbor considered
     double neighborValue;    // its value (ie class label)
     double sumWeightedValue; // weighted sum of each neighbor so far
     double sumAllWeight;     // sum of the weights of each neighbor so far
     double probaLabel;
-    double[][] predictions=new double[kernel.length][k.length];
     int kIndex;              // indexes k[] array
     // for each kernel width from kernel[]
     for (int kernelIndex=0; kernelIndex < kernel.length; kernelIndex++)
     {
       sumWeightedValue = 0;
       sumAllWeight = 0;
+      probaLabel = 0.5;
       kIndex = 0;
       // for each neighbor from 0 to max k[]
-      for (int neighborNo=0; neighborNo < k[k.length-1]; neighborNo++)
+      for (int neighborNo=0; neighborNo < numNeighbors; neighborNo++)
       {
         // compute the probability of each neighbor
-        neighbor = trainSet[neighborNo];
-        neighbor.setWeight(kernel[kernelIndex]);
-        neighborWeight = neighbor.getWeight();
-        neighborValue = neighbor.getClassLabel();
+        neighborWeight = 1.0/Math.exp(kernel[kernelIndex] * scratch.getDistance(neighborNo));
+        neighborValue = trainSet[scratch.getPosition(neighborNo)].getClassLabel();
         sumWeightedValue = sumWeightedValue + neighborValue * neighborWeight;
         sumAllWeight = sumAllWeight + neighborWeight;
         probaLabel = sumWeightedValue / sumAllWeight;
-        // update results after having seen k[kIndex] - 1 neighbors
+        // save the prediction after having seen k[kIndex] - 1 neighbors
         if (neighborNo == k[kIndex]-1)
         {
-          if (Math.abs(targetLabel - probaLabel) <= 0.5)
-          {
-            (numCorrect[kernelIndex][kIndex])++;
-          }
-          squaredError[kernelIndex][kIndex] = squaredError[kernelIndex][kIndex] + Math.pow(targetLabel - probaLabel,2);
           predictions[kernelIndex][kIndex] = probaLabel;
           kIndex++;
         }
       }
+      // fewer neighbors than k[kIndex] were found, use all of them
+      for (; kIndex < k.length; kIndex++)
+        predictions[kernelIndex][kIndex] = probaLabel;
+    }
+  }
+
+  /**
+   * Update the squared error and the number of correctly classified examples
+   * with the predictions made for an example of label targetLabel
+  **/
+  private static void score(int targetLabel, double[][] predictions, int[][] numCorrect, double[][] squaredError)
+  {
+    double probaLabel;
+    for (int kernelIndex=0; kernelIndex < predictions.length; kernelIndex++)
+    {
+      for (int kIndex=0; kIndex < predictions[kernelIndex].length; kIndex++)
+      {
+        probaLabel = predictions[kernelIndex][kIndex];
+        if (Math.abs(targetLabel - probaLabel) <= 0.5)
+        {
+          (numCorrect[kernelIndex][kIndex])++;
+        }
+        squaredError[kernelIndex][kIndex] = squaredError[kernelIndex][kIndex] + Math.pow(targetLabel - probaLabel,2);
+      }
     }
-    return predictions;
   }
 
   /**
@@ -221,52 +734,108 @@ public class kNN
 
   /**
    * Scale the feature weights by 1/(max-min) or 1/var depending on mode
-   * using a train set.
+   * using the statistics of the train set.
   **/
   private void scaleFeatureWeights(int mode)
   {
-    double max, min, var, sum, sumSquared;
+    scaledWeights = featureWeights(mode);
+    scaleFactors = new double[scaledWeights.length];
+    for (int i=0; i < scaleFactors.length; i++)
+      scaleFactors[i] = Math.sqrt(scaledWeights[i]);
+
+    // Attributes contributing most to the distances are summed first
+    double[] variances = new double[dataFile.getAttributeNum()];
+    for (int i=0; i < variances.length; i++)
+      variances[i] = stats.getVariance(i);
+    attributeOrder = kNNExample.orderAttributes(scaledWeights, variances);
+  }
+
+  /**
+   * Return a fingerprint of the training set and of the feature weights of the given mode,
+   * from which the points of that mode are scaled
+  **/
+  private long fingerprint(int mode)
+  {
+    double[] weights = (mode == weightingMode) ? scaledWeights : featureWeights(mode);
+    long hash = trainSetSize;
+    for (int i=0; i < weights.length; i++)
+      hash = 31 * hash + Double.doubleToLongBits(weights[i]);
+    for (int i=0; i < trainSetSize; i++)
+    {
+      hash = 31 * hash + trainSet[i].getClassLabel();
+      for (int j=0; j < weights.length; j++)
+        hash = 31 * hash + Double.doubleToLongBits(trainSet[i].getAttribute(j));
+    }
+    return hash;
+  }
+
+  /**
+   * Return the scaled point of an example with the weights of this kNN (see kNNExample.scale),
+   * written into point or into a new array if point is null
+  **/
+  private double[] scale(Example example, double[] point)
+  {
+    if (point == null)
+      point = new double[attributeOrder.length];
+    return kNNExample.scale(example, scaleFactors, attributeOrder, point);
+  }
+
+  /**
+   * Return the feature weights of the given mode from the statistics of the train set
+  **/
+  private double[] featureWeights(int mode)
+  {
+    // the extremes are recomputed if an example holding one was removed
+    if (stats.isStale())
+    {
+      stats.resetExtremes();
+      for (int j=0; j < trainSetSize; j++)
+        if (!index.isRemoved(j))
+          stats.updateExtremes(trainSet[j]);
+    }
+    double max, min, var;
     int numAttributeVal = dataFile.getAttributeNum();
-    double[] attributeVal = new double[trainSetSize];
     double[] featureWeights = new double[numAttributeVal];
-    double[] featureWeights1 = new double[numAttributeVal];
-    double[] featureWeights2 = new double[numAttributeVal];
-
-    // Find max min and variance of each attribute value
     for (int i=0; i < numAttributeVal; i++)
     {
-      sum = 0;
-      sumSquared = 0;
-      for (int j=0; j < trainSetSize; j++)
-      {
-        attributeVal[j] = dataFile.getAttribute(j,i);
-        sum = sum + attributeVal[j];
-        sumSquared = sumSquared + Math.pow(attributeVal[j],2);
-      }
-      Arrays.sort(attributeVal);
-      max = attributeVal[trainSetSize-1];
-      min = attributeVal[0];
-      var = sumSquared/trainSetSize - Math.pow(sum/trainSetSize,2);
+      max = stats.getMax(i);
+      min = stats.getMin(i);
+      var = stats.getVariance(i);
+      // Default feature weights to 1
       featureWeights[i] = 1;
-      if (max - min == 0)
-        featureWeights1[i] = 1;
-      else
-        featureWeights1[i] = 1/Math.exp(max-min);
-      if (var == 0)
-        featureWeights2[i] = 1;
-      else
-        featureWeights2[i] = 1/var;
+      // 1/(max-min)
+      if (mode == 1 && max - min != 0)
+        featureWeights[i] = 1/Math.exp(max-min);
+      // 1/var
+      else if (mode == 2 && var != 0)
+        featureWeights[i] = 1/var;
+      // features left out by selectFeatures
+      if (selected != null && !selected[i])
+        featureWeights[i] = 0;
     }
+    return featureWeights;
+  }
 
-    // Default feature weights to 1
-    if (mode == 0)
-      kNNExample.setFeatureWeights(featureWeights);
-    // 1/(max-min)
-    else if (mode == 1)
-      kNNExample.setFeatureWeights(featureWeights1);
-    // 1/var
-    else if (mode == 2)
-      kNNExample.setFeatureWeights(featureWeights2);
+  /**
+   * Return whether a feature weight drifted by more than DRIFT from the one the points were scaled with
+  **/
+  private boolean hasDrifted()
+  {
+    double[] featureWeights = featureWeights(weightingMode);
+    for (int i=0; i < featureWeights.length; i++)
+      if (Math.abs(featureWeights[i] - scaledWeights[i]) > DRIFT * scaledWeights[i])
+        return true;
+    return false;
+  }
+
+  /**
+   * Compute the statistics of the attributes of the training set
+  **/
+  private void initStats()
+  {
+    stats = new FeatureStats(dataFile.getAttributeNum());
+    for (int j=0; j < trainSetSize; j++)
+      stats.add(trainSet[j]);
   }
 
   /**
@@ -377,6 +946,7 @@ public class kNN
   */
   private void reportBaseline()
   {
+    commitUpdates();
     int[] count = new int[2];
     int bestCount = 0;
     int label;
@@ -399,12 +969,14 @@ public class kNN
    *         1 for Weighted kNN
    *         2 for Locally weighted Averaging
    * Param is either the maximum number of neighbors to consider or the maximum kernel width.
+   * Index is optional: 0 for linear scan, 1 for KD-tree, 2 for ball tree (default),
+   *                    3 for approximate search with LSH
   **/
   public static void main(String[] args)
   {
-    if (args.length!=4)
+    if (args.length!=4 && args.length!=5)
     {
-      System.out.println("Wrong usage. Type java kNN [data file] [training set size] [mode] [param]");
+      System.out.println("Wrong usage. Type java kNN [data file] [training set size] [mode] [param] [index]");
     }
     else
     {
@@ -433,6 +1005,14 @@ public class kNN
 
       // Init the kNN algorithm by setting up the train and test set
       kNN mykNN = new kNN(dataFile, trainSetSize);
+      mykNN.setParallelism(Runtime.getRuntime().availableProcessors());
+      // ...with LOOCV on the train set
+//      System.out.println("Proceeding with feature selection...");
+//      mykNN.selectFeatures(true, 5);
+      if (args.length == 5)
+        mykNN.buildIndex(Integer.parseInt(args[4]));
+      if (args.length == 5 && Integer.parseInt(args[4]) == LSH)
+        mykNN.reportRecall(8, 500);
 
       // Set up k[] and kernel[] based on the mode
       // we consider values of k from 1 to lastParam (note we could have considered smtg else)
@@ -463,6 +1043,9 @@ public class kNN
           break;
       }
 
+      // Optionally reduce the training set to fewer prototypes
+      //mykNN.reduceTrainingSet(EDITED, 3);
+
       // Train with these values of k[] and kernel[]
       mykNN.reportBaseline();
       int[] bestValues = new int[2];
@@ -10,10 +10,7 @@ import ann.*;
 public class kNNExample extends Example
 {
 
-  private double relativeDistance;         // The distance this example is from another example
-  private double weight;                   // Weight given to this example
   private int id;                          // A unique id for this example
-  private static double[] featureWeights;  // Used to compute weighted distance
 
   /**
    * Constructor
@@ -22,56 +19,92 @@ public class kNNExample extends Example
   {
     super(example);
     this.id = id;
-    this.weight = 1;  // by default each weight is set to 1
   }
 
   /**
-   * Set the weight of this example based on the kernel width.
-   * If kernel = 0 then unweighted kNN.
-   * If kernel = 1 then weighted kNN.
+   * Compute the squared weighted distance between two scaled points (see scale), whose
+   * attributes are already in order, but stop as soon as it exceeds bound and return
+   * the partial sum (which is then larger than bound).
+   * Only the attributes of point1 are summed, point2 may be longer (a query buffer).
+   * The bound is only checked every 4 attributes to keep the loop tight.
   */
-  public void setWeight(int kernel)
+  public static double boundedSquaredDist(double[] point1, double[] point2, double bound)
   {
-    this.weight = 1.0/Math.exp(kernel * relativeDistance);
-  }
-
-  /**
-   * Assumes feature weights have been set
-   * Compute the weighted distance relative to example
-  */
-  public void setRelativeDist(Example example)
-  {
-    double sum=0;
-    for (int i=0; i < attributes.length; i++)
+    double sum = 0;
+    double diff;
+    int end;
+    int i = 0;
+    while (i < point1.length)
     {
-      sum = sum + featureWeights[i] * (Math.pow(getAttribute(i) - example.getAttribute(i), 2));
+      end = Math.min(i + 4, point1.length);
+      for (; i < end; i++)
+      {
+        diff = point1[i] - point2[i];
+        sum = sum + diff * diff;
+      }
+      if (sum > bound)
+        return sum;
     }
-    this.relativeDistance = Math.sqrt(sum);
+    return sum;
   }
 
   /**
-   * Two kNN examples are equal if they have the same ids
+   * Return the order in which the attributes are summed in bounded distances: by decreasing
+   * weight * variance so that the bound is exceeded as soon as possible.
+   * Attributes of weight 0 are left out.
   */
-  public boolean equals(kNNExample example)
+  public static int[] orderAttributes(double[] featureWeights, double[] variances)
   {
-    return (this.id == example.getId());
+    int numAttributes = featureWeights.length;
+    double[] keys = new double[numAttributes];
+    int activeAttributes = 0;
+    for (int i=0; i < numAttributes; i++)
+    {
+      keys[i] = featureWeights[i] * variances[i];
+      if (featureWeights[i] != 0)
+        activeAttributes++;
+      else
+        keys[i] = Double.NEGATIVE_INFINITY;
+    }
+    // insertion sort of the attributes by decreasing key
+    int[] order = new int[numAttributes];
+    int j;
+    for (int i=0; i < numAttributes; i++)
+    {
+      for (j=i; j > 0 && keys[order[j-1]] < keys[i]; j--)
+        order[j] = order[j-1];
+      order[j] = i;
+    }
+    int[] attributeOrder = new int[activeAttributes];
+    System.arraycopy(order, 0, attributeOrder, 0, activeAttributes);
+    return attributeOrder;
   }
 
-
   /**
-   * Return the relative distance of this kNN example
+   * Write into point the attributes of example in attributeOrder (see orderAttributes),
+   * scaled by scaleFactors, the square roots of the feature weights.
+   * The weighted distance between two examples is the euclidian distance of their scaled points.
+   * The rest of point, if longer than attributeOrder, is set to 0.
   */
-  public double getRelativeDist()
+  public static double[] scale(Example example, double[] scaleFactors, int[] attributeOrder, double[] point)
   {
-    return relativeDistance;
+    int attribute;
+    for (int i=0; i < attributeOrder.length; i++)
+    {
+      attribute = attributeOrder[i];
+      point[i] = scaleFactors[attribute] * example.getAttribute(attribute);
+    }
+    for (int i=attributeOrder.length; i < point.length; i++)
+      point[i] = 0;
+    return point;
   }
 
   /**
-   * Return the weight of this kNN example
+   * Two kNN examples are equal if they have the same ids
   */
-  public double getWeight()
+  public boolean equals(kNNExample example)
   {
-    return weight;
+    return (this.id == example.getId());
   }
 
   /**
@@ -81,25 +114,4 @@ public class kNNExample extends Example
   {
     return id;
   }
-
-  /**
-   * Set the feature weights to the specified values
-  */
-  public static void setFeatureWeights(double[] featureWeights)
-  {
-    int numWeights = featureWeights.length;
-    kNNExample.featureWeights = new double[numWeights];
-    for (int i=0; i < numWeights; i++)
-      kNNExample.featureWeights[i] = featureWeights[i];
-  }
-
-  /**
-   * Default feature weights to one
-  */
-  public static void setFeatureWeights(int attributeNum)
-  {
-    kNNExample.featureWeights = new double[attributeNum];
-    for (int i=0; i < attributeNum; i++)
-      kNNExample.featureWeights[i] = 1;
-  }
 }
\ No newline at end of file
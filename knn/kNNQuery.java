@@ -0,0 +1,105 @@
+/**
+ * Scratch state of a kNN query: the scaled query point, the heap collecting its
+ * nearest neighbors and their distances.
+ * The training examples are never written to during a query, so each thread
+ * only needs its own kNNQuery to query a shared kNN model.
+ * The buffers are reused from one query to the next and only grow when needed.
+**/
+public class kNNQuery
+{
+
+  double[] point;          // scaled attributes of the query
+  NeighborHeap heap;       // nearest neighbors of the query
+  int size;                // number of nearest neighbors found
+  int[] positions;         // positions of the nearest neighbors, nearest first
+  double[] distances;      // distances of the nearest neighbors, nearest first
+
+  /**
+   * Create the scratch state for queries with attributeNum attributes
+   * and up to numNeighbors neighbors
+  **/
+  public kNNQuery(int attributeNum, int numNeighbors)
+  {
+    point = new double[attributeNum];
+    heap = new NeighborHeap(numNeighbors);
+    positions = new int[numNeighbors];
+    distances = new double[numNeighbors];
+  }
+
+  /**
+   * Prepare for a query with numNeighbors neighbors
+  **/
+  void clear(int numNeighbors)
+  {
+    heap.clear(numNeighbors);
+    if (distances.length < numNeighbors)
+    {
+      positions = new int[numNeighbors];
+      distances = new double[numNeighbors];
+    }
+  }
+
+  /**
+   * Sort the neighbors found and compute their distances
+  **/
+  void sort()
+  {
+    heap.sort();
+    size = heap.size();
+    for (int i=0; i < size; i++)
+    {
+      positions[i] = heap.getPosition(i);
+      distances[i] = Math.sqrt(heap.getDistance(i));
+    }
+  }
+
+  /**
+   * Take the numNeighbors nearest neighbors of a training example from the cache,
+   * or as many as it holds for that example
+  **/
+  void load(NeighborCache cache, int example, int numNeighbors)
+  {
+    clear(numNeighbors);
+    size = Math.min(numNeighbors, cache.getCount(example));
+    for (int i=0; i < size; i++)
+    {
+      positions[i] = cache.getNeighbor(example, i);
+      distances[i] = cache.getDistance(example, i);
+    }
+  }
+
+  /**
+   * Take numNeighbors sorted neighbors from positions[offset..] and distances[offset..]
+  **/
+  void load(int[] positions, double[] distances, int offset, int numNeighbors)
+  {
+    clear(numNeighbors);
+    size = numNeighbors;
+    System.arraycopy(positions, offset, this.positions, 0, numNeighbors);
+    System.arraycopy(distances, offset, this.distances, 0, numNeighbors);
+  }
+
+  /**
+   * Return the number of neighbors found
+  **/
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Return the position in the training set of the i-th nearest neighbor
+  **/
+  public int getPosition(int i)
+  {
+    return positions[i];
+  }
+
+  /**
+   * Return the distance of the i-th nearest neighbor
+  **/
+  public double getDistance(int i)
+  {
+    return distances[i];
+  }
+}
@@ -9,6 +9,8 @@ import java.io.Serializable;
 
 public class Edge implements Serializable
 {
+  private static final long serialVersionUID = -2041092475153427620L;  // that of the saved networks
+
   /*********** Variables **************/
 
   private double weight;            // the weight associated with this edge
@@ -121,6 +123,22 @@ public class Edge implements Serializable
     return weight;
   }
 
+  /**
+  * @return the change in weight of this edge
+  **/
+  public double getDeltaWeight()
+  {
+    return deltaWeight;
+  }
+
+  /**
+  * @return the previous change in weight of this edge
+  **/
+  public double getDeltaWeightOld()
+  {
+    return deltaWeightOld;
+  }
+
   /**
   * @return the source neuron for this edge
   **/
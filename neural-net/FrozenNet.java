@@ -0,0 +1,105 @@
+/**
+  * FrozenNet Class : A trained neural network which can only be run, made by NeuralNet.freeze()
+  * Its weights are copied from the network, never change afterwards, and the values of the
+  * neurons are kept in arrays made for each call, so that any number of threads can share it.
+  * Assume there is only one output neuron, as NeuralNet.testSingle does.
+  **/
+public class FrozenNet
+{
+
+  /**************** Variables ********************/
+
+  private final int[] numInLayer;       // number of neurons in each layer
+  private final double[][] weights;     // weights of the edges between layers i and i+1, laid out
+                                        // as in NeuralNet: weights[i][k*numInLayer[i]+j]
+
+  /**************** Methods **********************/
+
+  /**
+  * Copy the layers and the weights of a network
+  **/
+  FrozenNet(int[] numInLayer, double[][] weights)
+  {
+    this.numInLayer=numInLayer.clone();
+    this.weights=new double[weights.length][];
+    for (int i=0;i<weights.length;i++)
+      this.weights[i]=weights[i].clone();
+  }
+
+  /**
+  * @return the value of the output neuron for each row of attributes
+  **/
+  public double[] predictProba(double[][] attributes)
+  {
+    double[][] values=newValues();
+    double[] proba=new double[attributes.length];
+    for (int r=0;r<attributes.length;r++)
+      proba[r]=run(attributes[r],values);
+    return proba;
+  }
+
+  /**
+  * @return the class of each row of attributes: 1 if the output neuron is more than 0.5, 0 otherwise
+  **/
+  public int[] predict(double[][] attributes)
+  {
+    double[][] values=newValues();
+    int[] labels=new int[attributes.length];
+    for (int r=0;r<attributes.length;r++)
+    {
+      if (run(attributes[r],values)>0.5)
+        labels[r]=1;
+      else
+        labels[r]=0;
+    }
+    return labels;
+  }
+
+  /**
+  * @return the value of the output neuron for a single row of attributes
+  **/
+  public double predictProba(double[] attributes)
+  {
+    return run(attributes,newValues());
+  }
+
+  /**
+  * @return the class of a single row of attributes
+  **/
+  public int predict(double[] attributes)
+  {
+    if (predictProba(attributes)>0.5)
+      return 1;
+    else
+      return 0;
+  }
+
+  /**
+  * @return the number of attributes of a row (number of input neurons)
+  **/
+  public int getInputNum()
+  {
+    return numInLayer[0];
+  }
+
+  /**
+  * The values of the neurons of a call, by layer
+  **/
+  private double[][] newValues()
+  {
+    double[][] values=new double[numInLayer.length][];
+    for (int i=0;i<numInLayer.length;i++)
+      values[i]=new double[numInLayer[i]];
+    return values;
+  }
+
+  /**
+  * Run the network on a row of attributes, as NeuralNet.runNetwork
+  **/
+  private double run(double[] attributes, double[][] values)
+  {
+    System.arraycopy(attributes,0,values[0],0,numInLayer[0]);
+    NeuralNet.runLayers(weights,values);
+    return values[numInLayer.length-1][0];
+  }
+}
@@ -1,9 +1,21 @@
 import java.util.*;
 import java.io.*;
 import java.util.zip.*;
+import java.util.concurrent.*;
 
 /**
-  * NeuralNet Class : A neural network consists of edges and neuron
+  * NeuralNet Class : A neural network consists of layers of neurons, each neuron of a layer
+  * connected to every neuron of the next layer by an edge of some weight
+  * The weights, and their changes, between two layers are kept in a single array
+  * so that the values and error terms of a layer are computed as matrix-vector products.
+  * In batch mode the gradient of the training set is added up by several threads, each on its
+  * own slice of the examples. In mini-batch mode the examples of a batch are run together, as matrix-matrix products
+  * over a block of examples split between threads.
+  * In Hogwild mode each thread runs stochastic gradient descent on its own slice of the
+  * training set, all updating the same weights without locks (Niu, Recht, Re and Wright, Hogwild!),
+  * or each its own copy of the weights, averaged every so many examples.
+  * A trained network can be frozen into a FrozenNet to be run by many threads at once.
+  * (Neuron and Edge are only kept to load networks saved when each was an object)
   * Author: Alex Ksikes
   **/
 public class NeuralNet implements Serializable
@@ -14,10 +26,20 @@ public class NeuralNet implements Serializable
   final static int MAXNEURONS     = 60;	// maximum number of neurons in each layer
   final static int BATCHMODE      = 0;  // batch mode for training
   final static int STOCHASTICMODE = 1;	// stochastic mode for training
-  Vector neurons;		        // set of neurons in this neural network
-  Vector edges;			        // set of edges in this neural network
-  int [][] neuronsIndex;	        // index of neurons. First component in this 2D array is the layer,
-                                        // second component is the layer numbering
+  final static int MINIBATCHMODE  = 2;  // mini-batch mode for training
+  final static int HOGWILDMODE    = 3;  // stochastic mode on several threads sharing the weights
+  final static int BATCHSIZE      = 32; // default number of examples of a mini-batch
+  final static int BLOCKSIZE      = 8;  // number of examples (or neurons) handled by a single task
+  final static int TILESIZE       = 64; // number of neurons whose weights are kept in cache together
+  final static int SLICESIZE      = 256;// number of examples whose gradient a single task of batch mode adds up
+  private static final long serialVersionUID = 7476902674702677458L;  // that of the saved networks
+  int[] numInLayer;                     // number of neurons in each layer
+  double[][] weights;                   // weights[i][k*numInLayer[i]+j] is the weight of the edge
+                                        // from neuron j of layer i to neuron k of layer i+1
+  double[][] deltaWeights;              // change in weight of each edge, same layout
+  double[][] deltaWeightsOld;           // keep track of the old value of the change in weight
+  transient double[][] values;          // value of each neuron, by layer
+  transient double[][] errorTerms;      // error term of each neuron, by layer
   int inputNum;				// number of input neurons
   int outputNum;			// number of output neurons
   int layerNo;			        // number of layers
@@ -25,6 +47,14 @@ public class NeuralNet implements Serializable
   double momentum;			// momentum term
   double errAcc;		        // global error in the network
   int mode;				// the mode to use for training
+  int batchSize=BATCHSIZE;              // number of examples of a mini-batch
+  int averagingPeriod;                  // in Hogwild mode, number of examples of each thread
+                                        // between two averages of their weights (0 to share them)
+  transient int parallelism;            // number of threads of the mini-batches
+  transient double[][] batchValues;     // value of each neuron for each example of a mini-batch,
+                                        // by layer, batchValues[i][r*numInLayer[i]+j] for example r
+  transient double[][] batchErrorTerms; // error term of each neuron for each example, same layout
+  transient double[] batchTargets;      // class label of each example of a mini-batch
 
   /**************** Methods **********************/
 
@@ -37,17 +67,14 @@ public class NeuralNet implements Serializable
   * @param learningRate sets how fast the networks changes its weight
   * @param momentum determine how much the weight change is based on past update
   * @param mode indicates the mode (Batch or Stochastic) to use for training
-  * Step 1 : Creates all the neurons in the network, ordered by layers,
-  * keeping the index of the neuron in neuronsIndex[][]
-  * Step 2 : Calls MLPNetworkSetup to set up the edges between the neurons,
-  * determined by the layers they are in.
+  * Step 1 : Creates the values and error terms of the neurons of each layer
+  * Step 2 : Calls MLPNetworkSetup to set up the weights between the layers
   **/
   public NeuralNet(int layerNo, int[] numInLayer, double learningRate, double momentum, int mode)
   {
-    // Set up the neuron index array
-    neuronsIndex=new int[layerNo][];
+    this.numInLayer=new int[layerNo];
     for (int i=0; i<layerNo; i++)
-      neuronsIndex[i]=new int[numInLayer[i]];
+      this.numInLayer[i]=numInLayer[i];
 
     this.layerNo=layerNo;
     this.learningRate=learningRate;
@@ -55,62 +82,61 @@ public class NeuralNet implements Serializable
     this.mode=mode;
     this.inputNum=numInLayer[0];
     this.outputNum=numInLayer[layerNo-1];
-    this.neurons=new Vector();
 
     // Step 1
-    int id=0;
-    // in layer i
+    initNeurons();
+    // Step 2
+    MLPNetworkSetup(numInLayer);
+  }
+
+  /**
+  * Create the values and error terms of the neurons of each layer
+  **/
+  private void initNeurons()
+  {
+    parallelism=Runtime.getRuntime().availableProcessors();
+    values=new double[layerNo][];
+    errorTerms=new double[layerNo][];
     for (int i=0;i<layerNo;i++)
     {
-      // and layer numbering j
-      for (int j=0;j<numInLayer[i];j++)
-      {
-        neurons.add(id,new Neuron(id));
-        neuronsIndex[i][j]=id;          // keeping track of the index of each neuron
-        id++;
-      }
+      values[i]=new double[numInLayer[i]];
+      errorTerms[i]=new double[numInLayer[i]];
     }
-    // Step 2
-    MLPNetworkSetup(numInLayer);
   }
 
   /**
-  * Set up the forward backward edges relationship in the neural network in MLP fashion
+  * Set up the weights between the layers in the neural network in MLP fashion
   * @param numInLayer indicates the number of neuron in each layer
-  * Steps  : Create an edge for each neuron in layer i and neuron in layer i+1.
-  *          Add this edge to the set of forward edges for the neuron in layer i
-  *	     Add this edge to the set of backward edges for the neuron in layer i+1
-  *          Call the edge reset function to set random initial weights.
+  * Steps  : Create a weight for each neuron in layer i and neuron in layer i+1.
+  *          Set the weights to random initial values, one edge after the other
+  *          (as the edges were numbered: by layer, then neuron of layer i, then of layer i+1)
+  *          uniformly between w and -w where w=1/sqrt(n) and n=# of inputs of layer i+1
   **/
   private  void MLPNetworkSetup(int [] numInLayer)
   {
-    this.edges=new Vector();
-    Neuron parent;
-    Neuron child;
-    Edge e;
-    int id=0;
+    weights=new double[layerNo-1][];
+    deltaWeights=new double[layerNo-1][];
+    deltaWeightsOld=new double[layerNo-1][];
+    double w;
     // in layer i
     for (int i=0;i<layerNo-1;i++)
     {
+      weights[i]=new double[numInLayer[i]*numInLayer[i+1]];
+      deltaWeights[i]=new double[weights[i].length];
+      deltaWeightsOld[i]=new double[weights[i].length];
+      w=1.0/Math.sqrt(numInLayer[i]);
       // and layer numbering j
       for (int j=0;j<numInLayer[i];j++)
       {
-        parent=(Neuron) neurons.get(neuronsIndex[i][j]);  // get neuron at this location
         for (int k=0;k<numInLayer[i+1];k++)
         {
-          child=(Neuron) neurons.get(neuronsIndex[i+1][k]);
-          e=new Edge(parent,child,learningRate,id,momentum,mode);
-          parent.addForwardEdge(e);
-          child.addBackwardEdge(e);
-          edges.add(id,e);
-          id++;
+          if (Math.random()>1/2.0)
+            weights[i][k*numInLayer[i]+j]=Math.random()*w;
+          else
+            weights[i][k*numInLayer[i]+j]=-1*Math.random()*w;
         }
       }
     }
-    // now we can call the reset function on each edge
-    for (int i=0;i<edges.size();i++)
-      ((Edge) edges.get(i)).reset();
-
   }
 
   /**
@@ -119,10 +145,11 @@ public class NeuralNet implements Serializable
   **/
   public void printWeight()
   {
-    for (int i=0;i<edges.size();i++)
-    {
-      System.out.print("Weight of edge "+i+": "+ ((Edge) edges.get(i)) .getWeight()+"  ");
-    }
+    int id=0;
+    for (int i=0;i<layerNo-1;i++)
+      for (int j=0;j<numInLayer[i];j++)
+        for (int k=0;k<numInLayer[i+1];k++)
+          System.out.print("Weight of edge "+(id++)+": "+ weights[i][k*numInLayer[i]+j]+"  ");
   }
 
   /**
@@ -134,26 +161,47 @@ public class NeuralNet implements Serializable
   private void runNetwork(Example example)
   {
     // Step 1
-    Neuron input;
-    double x;
     for (int j=0;j<inputNum;j++)
-    {
-      input=(Neuron) neurons.get(neuronsIndex[0][j]);
-      x=example.getAttribute(j);
-      input.setValue(x);
-    }
+      values[0][j]=example.getAttribute(j);
     // Step 2
-    Neuron n;
-    for (int i=1;i<layerNo;i++)
+    runLayers(weights,values);
+  }
+
+  /**
+  * Calculate the values of each layer from those of the previous one, given the values
+  * of the input layer (by this network, or a worker of HOGWILDMODE or a FrozenNet with their own values)
+  **/
+  static void runLayers(double[][] weights, double[][] values)
+  {
+    double[] input, output, weight;
+    double net;
+    int offset;
+    for (int i=1;i<values.length;i++)
     {
-      for (int j=0;j<neuronsIndex[i].length;j++)
+      input=values[i-1];
+      output=values[i];
+      weight=weights[i-1];
+      for (int k=0;k<output.length;k++)
       {
-        n=(Neuron) neurons.elementAt(neuronsIndex[i][j]);
-        n.calValue();
+        // Compute weighted sum of its input parents
+        net=0;
+        offset=k*input.length;
+        for (int j=0;j<input.length;j++)
+          net=net + weight[offset+j]*input[j];
+        // Apply activation function
+        output[k]=sigmoid(net);
       }
     }
   }
 
+  /**
+  * Activation function of the neurons: the sigmoid function
+  **/
+  private static double sigmoid(double y)
+  {
+    return 1.0 / ( 1 + Math.exp(-1*y) );
+  }
+
 
   /**
   * Train the network using this example
@@ -172,33 +220,309 @@ public class NeuralNet implements Serializable
 
   /**
   * Train the network using all the examples in the training set
-  * @param example contains the input attributes
+  * The gradient of each slice of SLICESIZE examples is added up by its own task, and the
+  * gradients of the slices are added two by two in the same order whatever the number of threads.
+  * The momentum term, which stochastic back propagation adds for each example, is added
+  * once for all the examples, so that the change in weight of each edge is the same (up to rounding).
+  * @param pool contains the threads adding up the gradients
   **/
-  private void trainAll(DataSet trainingSet)
+  private void trainAll(DataSet trainingSet, ForkJoinPool pool)
   {
-    Example example;
-    for (int i=0;i<trainingSet.size();i++)
+    GradientTask task=new GradientTask(trainingSet,0,trainingSet.size());
+    pool.invoke(task);
+    // update the change in weight of each edge
+    double[] gradient, delta, deltaOld;
+    int examplesNum=trainingSet.size();
+    for (int i=0;i<layerNo-1;i++)
     {
-      example=trainingSet.getExample(i);
-      runNetwork(example);
-      // update the change in weight of each edge
-      backPropagation(example);
+      gradient=task.gradient[i];
+      delta=deltaWeights[i];
+      deltaOld=deltaWeightsOld[i];
+      for (int e=0;e<delta.length;e++)
+        delta[e]=delta[e] + learningRate*(1-momentum)*gradient[e] + examplesNum*momentum*deltaOld[e];
     }
     // now update the weights of each edge
     updateWeights();
   }
 
+  /**
+  * Fork/join task adding up the gradient, error term times value for each edge,
+  * of the examples from start to end (excluded), in its own arrays
+  **/
+  private class GradientTask extends RecursiveAction
+  {
+    private DataSet trainingSet;
+    private int start;
+    private int end;
+    double[][] gradient;                // same layout as the weights
+
+    GradientTask(DataSet trainingSet, int start, int end)
+    {
+      this.trainingSet=trainingSet;
+      this.start=start;
+      this.end=end;
+    }
+
+    protected void compute()
+    {
+      if (end-start > SLICESIZE)
+      {
+        // split on a multiple of SLICESIZE
+        int middle=start + ((end-start)/SLICESIZE/2)*SLICESIZE;
+        if (middle==start)
+          middle=start+SLICESIZE;
+        GradientTask left=new GradientTask(trainingSet,start,middle);
+        GradientTask right=new GradientTask(trainingSet,middle,end);
+        invokeAll(left,right);
+        gradient=left.gradient;
+        for (int i=0;i<layerNo-1;i++)
+          for (int e=0;e<gradient[i].length;e++)
+            gradient[i][e]=gradient[i][e] + right.gradient[i][e];
+        return;
+      }
+      double[][] taskValues=new double[layerNo][];
+      double[][] taskErrorTerms=new double[layerNo][];
+      gradient=new double[layerNo-1][];
+      for (int i=0;i<layerNo;i++)
+      {
+        taskValues[i]=new double[numInLayer[i]];
+        taskErrorTerms[i]=new double[numInLayer[i]];
+        if (i<layerNo-1)
+          gradient[i]=new double[weights[i].length];
+      }
+      Example example;
+      double[] value, errorTerm, sum;
+      int offset;
+      for (int r=start;r<end;r++)
+      {
+        example=trainingSet.getExample(r);
+        for (int j=0;j<inputNum;j++)
+          taskValues[0][j]=example.getAttribute(j);
+        runLayers(weights,taskValues);
+        computeErrorTerms(weights,taskValues,taskErrorTerms,example.getClassLabel());
+        for (int i=0;i<layerNo-1;i++)
+        {
+          value=taskValues[i];
+          errorTerm=taskErrorTerms[i+1];
+          sum=gradient[i];
+          for (int k=0;k<errorTerm.length;k++)
+          {
+            offset=k*value.length;
+            for (int j=0;j<value.length;j++)
+              sum[offset+j]=sum[offset+j] + errorTerm[k]*value[j];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+  * Train the network on the training set one mini-batch of batchSize examples after the other
+  * @param pool contains the threads running each mini-batch
+  **/
+  private void trainMiniBatches(DataSet trainingSet, ForkJoinPool pool)
+  {
+    for (int start=0;start<trainingSet.size();start+=batchSize)
+      trainBatch(trainingSet,start,Math.min(start+batchSize,trainingSet.size()),pool);
+  }
+
+  /**
+  * Train the network on the examples from start to end (excluded) at once
+  * Step 1: Copy the attributes of the examples into the input block, one row per example
+  * Step 2: Compute the values of each layer from the values of the previous one
+  * Step 3: Compute the error terms of the output layer and back propagate them
+  * Step 4: Compute the change in weight of each edge from the error terms of the batch,
+  *         with the momentum term added once, and update the weights
+  * (with a single example per batch this is stochastic mode, up to rounding)
+  **/
+  private void trainBatch(DataSet trainingSet, int start, int end, ForkJoinPool pool)
+  {
+    int rows=end-start;
+    if (batchValues==null || batchTargets.length<rows)
+    {
+      batchValues=new double[layerNo][];
+      batchErrorTerms=new double[layerNo][];
+      for (int i=0;i<layerNo;i++)
+      {
+        batchValues[i]=new double[rows*numInLayer[i]];
+        batchErrorTerms[i]=new double[rows*numInLayer[i]];
+      }
+      batchTargets=new double[rows];
+    }
+    // Step 1
+    Example example;
+    double[] input=batchValues[0];
+    for (int r=0;r<rows;r++)
+    {
+      example=trainingSet.getExample(start+r);
+      for (int j=0;j<inputNum;j++)
+        input[r*inputNum+j]=example.getAttribute(j);
+      batchTargets[r]=example.getClassLabel();
+    }
+    // Step 2
+    for (int i=1;i<layerNo;i++)
+      pool.invoke(new BatchTask(BatchTask.FORWARD,i,rows,0,rows));
+    // Step 3
+    double[] value=batchValues[layerNo-1];
+    double[] errorTerm=batchErrorTerms[layerNo-1];
+    for (int r=0;r<rows;r++)
+      for (int j=0;j<outputNum;j++)
+        errorTerm[r*outputNum+j]=value[r*outputNum+j]*(1-value[r*outputNum+j])*(batchTargets[r]-value[r*outputNum+j]);
+    for (int i=layerNo-2;i>0;i--)
+      pool.invoke(new BatchTask(BatchTask.BACKWARD,i,rows,0,rows));
+    // Step 4
+    for (int i=0;i<layerNo-1;i++)
+      pool.invoke(new BatchTask(BatchTask.GRADIENT,i,rows,0,numInLayer[i+1]));
+    updateWeights();
+  }
+
+  /**
+  * Fork/join task of a mini-batch, on the rows from start to end (excluded) of a layer
+  * FORWARD  : values of layer i of the examples start to end, from those of layer i-1
+  *            (the weights of TILESIZE neurons at a time go through every example)
+  * BACKWARD : error terms of the hidden layer i of the examples start to end, from those of layer i+1
+  * GRADIENT : change in weight of the edges from layer i to the neurons start to end of layer i+1,
+  *            summed over the examples in order so that the result does not depend on the threads
+  **/
+  private class BatchTask extends RecursiveAction
+  {
+    final static int FORWARD=0;
+    final static int BACKWARD=1;
+    final static int GRADIENT=2;
+
+    private int type;
+    private int layer;
+    private int rows;                   // number of examples of the mini-batch
+    private int start;
+    private int end;
+
+    BatchTask(int type, int layer, int rows, int start, int end)
+    {
+      this.type=type;
+      this.layer=layer;
+      this.rows=rows;
+      this.start=start;
+      this.end=end;
+    }
+
+    protected void compute()
+    {
+      if (end-start > BLOCKSIZE)
+      {
+        // split on a multiple of BLOCKSIZE
+        int middle=start + ((end-start)/BLOCKSIZE/2)*BLOCKSIZE;
+        if (middle==start)
+          middle=start+BLOCKSIZE;
+        invokeAll(new BatchTask(type,layer,rows,start,middle),new BatchTask(type,layer,rows,middle,end));
+        return;
+      }
+      if (type==FORWARD)
+        forward();
+      else if (type==BACKWARD)
+        backward();
+      else
+        gradient();
+    }
+
+    private void forward()
+    {
+      int n=numInLayer[layer-1];
+      int m=numInLayer[layer];
+      double[] input=batchValues[layer-1];
+      double[] output=batchValues[layer];
+      double[] weight=weights[layer-1];
+      double net;
+      int offset, rowOffset;
+      for (int tile=0;tile<m;tile+=TILESIZE)
+      {
+        for (int r=start;r<end;r++)
+        {
+          rowOffset=r*n;
+          for (int k=tile;k<Math.min(tile+TILESIZE,m);k++)
+          {
+            net=0;
+            offset=k*n;
+            for (int j=0;j<n;j++)
+              net=net + weight[offset+j]*input[rowOffset+j];
+            output[r*m+k]=sigmoid(net);
+          }
+        }
+      }
+    }
+
+    private void backward()
+    {
+      int n=numInLayer[layer];
+      int m=numInLayer[layer+1];
+      double[] value=batchValues[layer];
+      double[] errorTerm=batchErrorTerms[layer];
+      double[] next=batchErrorTerms[layer+1];
+      double[] weight=weights[layer];
+      double nextTerm;
+      int offset, rowOffset;
+      for (int r=start;r<end;r++)
+      {
+        rowOffset=r*n;
+        for (int j=0;j<n;j++)
+          errorTerm[rowOffset+j]=0;
+        for (int k=0;k<m;k++)
+        {
+          nextTerm=next[r*m+k];
+          offset=k*n;
+          for (int j=0;j<n;j++)
+            errorTerm[rowOffset+j]=errorTerm[rowOffset+j] + weight[offset+j]*nextTerm;
+        }
+        for (int j=0;j<n;j++)
+          errorTerm[rowOffset+j]=value[rowOffset+j]*(1-value[rowOffset+j])*errorTerm[rowOffset+j];
+      }
+    }
+
+    private void gradient()
+    {
+      int n=numInLayer[layer];
+      int m=numInLayer[layer+1];
+      double[] value=batchValues[layer];
+      double[] errorTerm=batchErrorTerms[layer+1];
+      double[] delta=deltaWeights[layer];
+      double[] deltaOld=deltaWeightsOld[layer];
+      double[] sum=new double[n];
+      double term;
+      int offset, rowOffset;
+      for (int k=start;k<end;k++)
+      {
+        for (int j=0;j<n;j++)
+          sum[j]=0;
+        for (int r=0;r<rows;r++)
+        {
+          term=errorTerm[r*m+k];
+          rowOffset=r*n;
+          for (int j=0;j<n;j++)
+            sum[j]=sum[j] + term*value[rowOffset+j];
+        }
+        offset=k*n;
+        for (int j=0;j<n;j++)
+          delta[offset+j]=delta[offset+j] + learningRate*(1-momentum)*sum[j] + momentum*deltaOld[offset+j];
+      }
+    }
+  }
+
   /**
   * Update the weights of this ANN and reinitialize the change in weights
   **/
   public void updateWeights()
   {
-    Edge e;
-    for (int i=0;i<edges.size();i++)
+    double[] weight, delta, deltaOld;
+    for (int i=0;i<layerNo-1;i++)
     {
-      e=(Edge) edges.get(i);
-      e.updateWeight();
-      e.initDeltaWeight();
+      weight=weights[i];
+      delta=deltaWeights[i];
+      deltaOld=deltaWeightsOld[i];
+      for (int e=0;e<weight.length;e++)
+      {
+        weight[e]=weight[e] + delta[e];
+        deltaOld[e]=delta[e];   // for momentum...
+        delta[e]=0;
+      }
     }
   }
 
@@ -211,15 +535,22 @@ public class NeuralNet implements Serializable
   **/
   public int testSingle(Example example)
   {
-    Neuron output;
     runNetwork(example);
-    output=(Neuron) neurons.elementAt(neuronsIndex[layerNo-1][0]);
-    if (output.getValue()>0.5)
+    if (values[layerNo-1][0]>0.5)
       return 1;
     else
       return 0;
   }
 
+  /**
+  * Copy the trained network into a FrozenNet, which can only be run but can be shared
+  * by any number of threads (this network writes the values of its neurons when it runs)
+  **/
+  public FrozenNet freeze()
+  {
+    return new FrozenNet(numInLayer,weights);
+  }
+
   /**
   * To test the accuracy level of the entire data set
   * @param testSet contains all the example to test for accuracy
@@ -247,7 +578,6 @@ public class NeuralNet implements Serializable
   public double computeRMS(DataSet trainingSet)
   {
     Example example;
-    Neuron output;
     double probaOutput;
     int targetOutput;
     int numExamples=trainingSet.size();
@@ -256,8 +586,7 @@ public class NeuralNet implements Serializable
     {
       example=trainingSet.getExample(i);
       runNetwork(example);
-      output=(Neuron) neurons.elementAt(neuronsIndex[layerNo-1][0]);
-      probaOutput=output.getValue();
+      probaOutput=values[layerNo-1][0];
       targetOutput=example.getClassLabel();
       sum=Math.pow(probaOutput-targetOutput,2) + sum;
     }
@@ -313,14 +642,239 @@ public class NeuralNet implements Serializable
     }
     if (mode==BATCHMODE)
     {
+      ForkJoinPool pool=new ForkJoinPool(parallelism);
       for (int epoch=0;epoch<epochNum;epoch++)
       {
-        trainAll(trainingSet);
+        trainAll(trainingSet,pool);
         reportAccuracy(trainingSet,evaluationSet,epoch,20,out);
       }
+      pool.shutdown();
+    }
+    if (mode==MINIBATCHMODE)
+    {
+      ForkJoinPool pool=new ForkJoinPool(parallelism);
+      for (int epoch=0;epoch<epochNum;epoch++)
+      {
+        trainMiniBatches(trainingSet,pool);
+        reportAccuracy(trainingSet,evaluationSet,epoch,25,out);
+      }
+      pool.shutdown();
+    }
+    if (mode==HOGWILDMODE)
+    {
+      // a contiguous slice of the training set for each thread
+      int threads=Math.max(Math.min(parallelism,examplesNum),1);
+      Vector<SGDWorker> workers=new Vector<SGDWorker>();
+      for (int w=0;w<threads;w++)
+        workers.add(new SGDWorker(trainingSet,w*examplesNum/threads,(w+1)*examplesNum/threads));
+      if (averagingPeriod>0)
+      {
+        CyclicBarrier barrier=new CyclicBarrier(threads,new Averaging(workers));
+        int rounds=((examplesNum+threads-1)/threads + averagingPeriod-1)/averagingPeriod;
+        for (int w=0;w<threads;w++)
+          workers.get(w).setAveraging(barrier,rounds);
+      }
+      // the first thread which fails stops the training: the others are interrupted by shutdownNow,
+      // since with averaging they would wait at the barrier for it forever
+      ExecutorService pool=Executors.newFixedThreadPool(threads);
+      CompletionService<Object> service=new ExecutorCompletionService<Object>(pool);
+      try
+      {
+        for (int epoch=0;epoch<epochNum;epoch++)
+        {
+          for (int w=0;w<threads;w++)
+            service.submit(workers.get(w));
+          for (int w=0;w<threads;w++)
+            service.take().get();
+          reportAccuracy(trainingSet,evaluationSet,epoch,25,out);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while training",e);
+      }
+      catch (ExecutionException e)
+      {
+        throw new RuntimeException("A thread of Hogwild mode failed",e.getCause());
+      }
+      finally
+      {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+  * A thread of Hogwild mode: stochastic gradient descent on the examples from start to end (excluded)
+  * with its own values, error terms and old changes in weight (for momentum).
+  * The weights are those of the network, read and written by every thread without locks,
+  * or with averaging a copy of them, averaged with those of the other threads every averagingPeriod
+  * examples (rounds times per epoch, so that every thread waits for the others as often).
+  * Only the edges from neurons of nonzero value are updated: the error term of the others
+  * does not depend on them, and with sparse inputs most edges of the first layer are left alone.
+  * (their momentum term is then only added for the examples which use them)
+  **/
+  private class SGDWorker implements Callable<Object>
+  {
+    private DataSet trainingSet;
+    private int start;
+    private int end;
+    private double[][] workerWeights;   // the weights of the network, or a copy of them
+    private double[][] workerValues;
+    private double[][] workerErrorTerms;
+    private double[][] workerDeltaOld;
+    private int[] nonzero;              // index of the neurons of nonzero value of a layer
+    private CyclicBarrier barrier;      // where the threads wait for their weights to be averaged
+    private int rounds;                 // number of averages per epoch
+
+    SGDWorker(DataSet trainingSet, int start, int end)
+    {
+      this.trainingSet=trainingSet;
+      this.start=start;
+      this.end=end;
+      workerWeights=weights;
+      workerValues=new double[layerNo][];
+      workerErrorTerms=new double[layerNo][];
+      workerDeltaOld=new double[layerNo-1][];
+      int largest=0;
+      for (int i=0;i<layerNo;i++)
+      {
+        workerValues[i]=new double[numInLayer[i]];
+        workerErrorTerms[i]=new double[numInLayer[i]];
+        if (i<layerNo-1)
+          workerDeltaOld[i]=new double[weights[i].length];
+        largest=Math.max(largest,numInLayer[i]);
+      }
+      nonzero=new int[largest];
+    }
+
+    /**
+    * Train on a copy of the weights, averaged by the barrier at the end of each round
+    **/
+    void setAveraging(CyclicBarrier barrier, int rounds)
+    {
+      this.barrier=barrier;
+      this.rounds=rounds;
+      workerWeights=new double[layerNo-1][];
+      for (int i=0;i<layerNo-1;i++)
+        workerWeights[i]=weights[i].clone();
+    }
+
+    public Object call() throws Exception
+    {
+      if (barrier==null)
+      {
+        for (int e=start;e<end;e++)
+          train(trainingSet.getExample(e));
+        return null;
+      }
+      int from;
+      for (int round=0;round<rounds;round++)
+      {
+        from=start+round*averagingPeriod;
+        for (int e=from;e<Math.min(from+averagingPeriod,end);e++)
+          train(trainingSet.getExample(e));
+        barrier.await();
+      }
+      return null;
+    }
+
+    /**
+    * Run the example, compute the error terms and update the weights at once
+    **/
+    private void train(Example example)
+    {
+      for (int j=0;j<inputNum;j++)
+        workerValues[0][j]=example.getAttribute(j);
+      runLayers(workerWeights,workerValues);
+      computeErrorTerms(workerWeights,workerValues,workerErrorTerms,example.getClassLabel());
+      double[] value, errorTerm, weight, deltaOld;
+      double term, delta;
+      int count, offset;
+      for (int i=0;i<layerNo-1;i++)
+      {
+        value=workerValues[i];
+        errorTerm=workerErrorTerms[i+1];
+        weight=workerWeights[i];
+        deltaOld=workerDeltaOld[i];
+        count=0;
+        for (int j=0;j<value.length;j++)
+          if (value[j]!=0)
+            nonzero[count++]=j;
+        for (int k=0;k<errorTerm.length;k++)
+        {
+          term=learningRate*(1-momentum)*errorTerm[k];
+          offset=k*value.length;
+          for (int n=0;n<count;n++)
+          {
+            delta=term*value[nonzero[n]] + momentum*deltaOld[offset+nonzero[n]];
+            weight[offset+nonzero[n]]=weight[offset+nonzero[n]] + delta;
+            deltaOld[offset+nonzero[n]]=delta;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+  * Average the weights of the threads of Hogwild mode into those of the network,
+  * adding them up in the order of the threads, and give the average back to each thread
+  **/
+  private class Averaging implements Runnable
+  {
+    private Vector<SGDWorker> workers;
+
+    Averaging(Vector<SGDWorker> workers)
+    {
+      this.workers=workers;
+    }
+
+    public void run()
+    {
+      double[] weight;
+      double sum;
+      for (int i=0;i<layerNo-1;i++)
+      {
+        weight=weights[i];
+        for (int e=0;e<weight.length;e++)
+        {
+          sum=0;
+          for (int w=0;w<workers.size();w++)
+            sum=sum + workers.get(w).workerWeights[i][e];
+          weight[e]=sum/workers.size();
+        }
+        for (int w=0;w<workers.size();w++)
+          System.arraycopy(weight,0,workers.get(w).workerWeights[i],0,weight.length);
+      }
     }
   }
 
+  /**
+  * Set the number of examples of a mini-batch
+  **/
+  public void setBatchSize(int batchSize)
+  {
+    this.batchSize=Math.max(batchSize,1);
+  }
+
+  /**
+  * In Hogwild mode, give each thread its own copy of the weights, averaged every
+  * averagingPeriod examples of each thread (0 to share the weights without locks)
+  **/
+  public void setAveragingPeriod(int averagingPeriod)
+  {
+    this.averagingPeriod=Math.max(averagingPeriod,0);
+  }
+
+  /**
+  * Set the number of threads of batch mode, the mini-batches or Hogwild mode
+  **/
+  public void setParallelism(int parallelism)
+  {
+    this.parallelism=Math.max(parallelism,1);
+  }
+
   /**
   * Perform back propagation : gradient descent search to learn the weights of the network
   * Stochastic gradient descent
@@ -328,38 +882,64 @@ public class NeuralNet implements Serializable
   **/
   public void backPropagation(Example example)
   {
-    Neuron output;
-    Neuron n;
-    Edge e;
-    double targetVal;
-    double errorTerm;
+    computeErrorTerms(weights,values,errorTerms,example.getClassLabel());
+    for (int i=layerNo-2;i>=0;i--)
+      updateDeltaWeights(i);
+  }
+
+  /**
+  * Compute the error term of each neuron given its value and the target value of the output
+  * from output-to-hidden units till hidden-to-input units (the input layer has no error term)
+  **/
+  private static void computeErrorTerms(double[][] weights, double[][] values, double[][] errorTerms, double targetVal)
+  {
+    int layerNo=values.length;
+    double[] value, errorTerm, next, weight;
+    int offset;
     // from output-to-hidden units
-    targetVal=example.getClassLabel();
-    for (int j=0;j<outputNum;j++)
-    {
-      output=(Neuron) neurons.get(neuronsIndex[layerNo-1][j]);
-      output.backErrorTrack(targetVal);
-      errorTerm=output.getErrorTerm();
-      for (int k=0;k<output.getParentNum();k++)
-      {
-        e=(Edge) (output.getBackwardEdges()).get(k);
-        e.updateDeltaWeight(errorTerm);
-      }
-    }
+    value=values[layerNo-1];
+    errorTerm=errorTerms[layerNo-1];
+    for (int j=0;j<value.length;j++)
+      errorTerm[j]=value[j]*(1-value[j])*(targetVal-value[j]);
     // from hidden-to-hidden units till hidden-to-input units
     for (int i=layerNo-2; i>0; i--)
     {
-      for (int j=0;j<neuronsIndex[i].length;j++)
+      value=values[i];
+      errorTerm=errorTerms[i];
+      next=errorTerms[i+1];
+      weight=weights[i];
+      // sum of the weights to the next layer times their error terms
+      for (int j=0;j<value.length;j++)
+        errorTerm[j]=0;
+      for (int k=0;k<next.length;k++)
       {
-        n=(Neuron) neurons.elementAt(neuronsIndex[i][j]);
-        n.backErrorTrack();
-        errorTerm=n.getErrorTerm();
-        for (int k=0;k<n.getParentNum();k++)
-        {
-          e=(Edge) (n.getBackwardEdges()).get(k);
-          e.updateDeltaWeight(errorTerm);
-        }
+        offset=k*value.length;
+        for (int j=0;j<value.length;j++)
+          errorTerm[j]=errorTerm[j] + weight[offset+j]*next[k];
       }
+      for (int j=0;j<value.length;j++)
+        errorTerm[j]=value[j]*(1-value[j])*errorTerm[j];
+    }
+  }
+
+  /**
+  * Update the change in weight of the edges from layer i to layer i+1 according to the
+  * error terms of layer i+1 and the values of layer i
+  * (the momentum term is added for each example, in batch mode as well)
+  **/
+  private void updateDeltaWeights(int i)
+  {
+    double[] value=values[i];
+    double[] errorTerm=errorTerms[i+1];
+    double[] delta=deltaWeights[i];
+    double[] deltaOld=deltaWeightsOld[i];
+    int offset;
+    for (int k=0;k<errorTerm.length;k++)
+    {
+      offset=k*value.length;
+      for (int j=0;j<value.length;j++)
+        delta[offset+j]=delta[offset+j] + learningRate*(1-momentum)*errorTerm[k]*value[j]
+                                        + momentum*deltaOld[offset+j];
     }
   }
 
@@ -407,22 +987,92 @@ public class NeuralNet implements Serializable
   }
 
 
-  public Vector getNeurons()
+  /**
+    * Read a saved network, either as layers of weights or with a Neuron and Edge object
+    * for each neuron and edge (as myANN.dat was saved)
+   **/
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
   {
-    return neurons;
+    ObjectInputStream.GetField fields=in.readFields();
+    inputNum=fields.get("inputNum",0);
+    outputNum=fields.get("outputNum",0);
+    layerNo=fields.get("layerNo",0);
+    learningRate=fields.get("learningRate",0.0);
+    momentum=fields.get("momentum",0.0);
+    errAcc=fields.get("errAcc",0.0);
+    mode=fields.get("mode",0);
+    batchSize=fields.get("batchSize",BATCHSIZE);
+    averagingPeriod=fields.get("averagingPeriod",0);
+    if (fields.getObjectStreamClass().getField("edges")==null)
+    {
+      numInLayer=(int[]) fields.get("numInLayer",null);
+      weights=(double[][]) fields.get("weights",null);
+      deltaWeights=(double[][]) fields.get("deltaWeights",null);
+      deltaWeightsOld=(double[][]) fields.get("deltaWeightsOld",null);
+    }
+    else
+    {
+      // the edges were numbered by layer, then neuron of layer i, then of layer i+1
+      Vector edges=(Vector) fields.get("edges",null);
+      int[][] neuronsIndex=(int[][]) fields.get("neuronsIndex",null);
+      numInLayer=new int[layerNo];
+      for (int i=0;i<layerNo;i++)
+        numInLayer[i]=neuronsIndex[i].length;
+      weights=new double[layerNo-1][];
+      deltaWeights=new double[layerNo-1][];
+      deltaWeightsOld=new double[layerNo-1][];
+      Edge e;
+      int id=0;
+      for (int i=0;i<layerNo-1;i++)
+      {
+        weights[i]=new double[numInLayer[i]*numInLayer[i+1]];
+        deltaWeights[i]=new double[weights[i].length];
+        deltaWeightsOld[i]=new double[weights[i].length];
+        for (int j=0;j<numInLayer[i];j++)
+        {
+          for (int k=0;k<numInLayer[i+1];k++)
+          {
+            e=(Edge) edges.get(id++);
+            weights[i][k*numInLayer[i]+j]=e.getWeight();
+            deltaWeights[i][k*numInLayer[i]+j]=e.getDeltaWeight();
+            deltaWeightsOld[i][k*numInLayer[i]+j]=e.getDeltaWeightOld();
+          }
+        }
+      }
+    }
+    initNeurons();
   }
 
-  public Vector getEdges()
+  /**
+  * @return the number of neurons in this neural network
+  **/
+  public int getNeuronNum()
   {
-    return edges;
+    int num=0;
+    for (int i=0;i<layerNo;i++)
+      num=num + numInLayer[i];
+    return num;
+  }
+
+  /**
+  * @return the number of edges in this neural network
+  **/
+  public int getEdgeNum()
+  {
+    int num=0;
+    for (int i=0;i<layerNo-1;i++)
+      num=num + weights[i].length;
+    return num;
   }
 
   /** Start off point of this program **/
   public static void main(String args[]) throws IOException
   {
-    if (args.length!=3)
+    if (args.length!=3 && args.length!=4)
     {
-      System.out.println("Wrong usage. Type java NeuralNet [trainingFile] [evaluationFile] [mode]");
+      System.out.println("Wrong usage. Type java NeuralNet [trainingFile] [evaluationFile] [mode] [batch size]");
+      System.out.println("The mode is 0 for batch, 1 for stochastic, 2 for mini-batches of batch size examples");
+      System.out.println("and 3 for Hogwild (stochastic on several threads)");
     }
     else
     {
@@ -446,6 +1096,8 @@ public class NeuralNet implements Serializable
 
       // create a network
       NeuralNet myNetwork = new NeuralNet(layers.length,layers, learningRate, momentum, mode);
+      if (args.length==4)
+        myNetwork.setBatchSize(Integer.parseInt(args[3]));
       System.out.println("MLP Neural Network Created");
 
       // report parameters to user and write into files for graphs...
@@ -456,15 +1108,25 @@ public class NeuralNet implements Serializable
         System.out.println("Layer "+i+" has "+layers[i]+" elements");
         out.write("\nLayer "+i+" has "+layers[i]+" elements\r");
       }
-      System.out.println("Total number of neurons: " + myNetwork.getNeurons().size());
-      out.write("\nTotal number of neurons: " + myNetwork.getNeurons().size()+"\r");
-      System.out.println("Total number of edges: " + myNetwork.getEdges().size());
-      out.write("\nTotal number of edges: " + myNetwork.getEdges().size()+"\r");
+      System.out.println("Total number of neurons: " + myNetwork.getNeuronNum());
+      out.write("\nTotal number of neurons: " + myNetwork.getNeuronNum()+"\r");
+      System.out.println("Total number of edges: " + myNetwork.getEdgeNum());
+      out.write("\nTotal number of edges: " + myNetwork.getEdgeNum()+"\r");
       if (mode==BATCHMODE)
       {
         System.out.println("Batchmode selected");
         out.write("\nBatchmode selected \r");
       }
+      else if (mode==MINIBATCHMODE)
+      {
+        System.out.println("Mini-batch selected, "+myNetwork.batchSize+" examples per batch");
+        out.write("\nMini-batch selected, "+myNetwork.batchSize+" examples per batch\r");
+      }
+      else if (mode==HOGWILDMODE)
+      {
+        System.out.println("Hogwild selected, "+myNetwork.parallelism+" threads");
+        out.write("\nHogwild selected, "+myNetwork.parallelism+" threads\r");
+      }
       else
       {
         System.out.println("Stochastic selected");
@@ -8,6 +8,7 @@ import java.io.Serializable;
  **/
 public class Neuron implements Serializable
 {
+  private static final long serialVersionUID = 9000235306225355308L;  // that of the saved networks
 
   /************ Variables *************/
 